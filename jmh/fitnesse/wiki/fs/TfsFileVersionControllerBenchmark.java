@@ -0,0 +1,193 @@
+package fitnesse.wiki.fs;
+
+import fitnesse.wiki.VersionInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Times the controller's read, save, history and delete paths through {@link TfsWrapper} against
+ * {@link InMemoryTfsServer}, so only the controller's and wrapper's own work and the simulated network latency are
+ * measured.  Each thread works on its own set of pages.
+ * <p>
+ * Run with {@code gradle jmh}; {@link Concurrent} runs the same benchmarks on eight threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class TfsFileVersionControllerBenchmark {
+    public static final String SERVER_FOLDER = "$/FitnesseTfsBenchmark/RooT";
+
+    /**
+     * How many pages each call reads, saves or deletes.
+     */
+    @Param({"1", "20"})
+    public int fileCount;
+
+    @Param({"1024", "65536"})
+    public int pageBytes;
+
+    /**
+     * Delay added to every call to the server.
+     */
+    @Param({"0", "2"})
+    public long latencyMillis;
+
+    /**
+     * How many revisions of each file the server keeps the content of.
+     */
+    private static final int RETAINED_REVISIONS = 2;
+
+    private File folder;
+    private File wikiRoot;
+    private TfsWrapper wrapper;
+    private TfsFileVersionController controller;
+    private final AtomicInteger threadNumbers = new AtomicInteger();
+
+    /**
+     * Starts each iteration with a new server, so what it keeps from earlier iterations isn't measured.
+     */
+    @Setup(Level.Iteration)
+    public void startServer() throws IOException {
+        folder = Files.createTempDirectory("tfs-benchmark").toFile();
+        wikiRoot = new File(folder, "RooT");
+        InMemoryTfsServer server = new InMemoryTfsServer(wikiRoot, SERVER_FOLDER, latencyMillis);
+        server.setRetainedRevisions(RETAINED_REVISIONS);
+
+        Properties properties = new Properties();
+        properties.setProperty(TfsPropertiesHelper.WRITE_BEHIND_JOURNAL_PROPERTY_KEY, new File(folder, "journal").getPath());
+        properties.setProperty(TfsPropertiesHelper.HISTORY_INDEX_FOLDER_PROPERTY_KEY, new File(folder, "history").getPath());
+        properties.setProperty(TfsPropertiesHelper.DOWNLOAD_FOLDER_PROPERTY_KEY, new File(folder, "downloads").getPath());
+        wrapper = new TfsWrapper(properties, server, Collections.<TfsVersionControl>singletonList(server));
+        controller = new TfsFileVersionController(properties, wrapper);
+    }
+
+    @TearDown(Level.Iteration)
+    public void stopServer() throws IOException {
+        controller.getWriteBehindQueue().close();
+        wrapper.close();
+        Files.walkFileTree(folder.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * One thread's pages, saved to the server before each iteration's first measurement.
+     */
+    @State(Scope.Thread)
+    public static class Pages {
+        private FileVersion[] fileVersions;
+        private File[] files;
+        private byte[] content;
+        private int saves;
+
+        @Setup(Level.Iteration)
+        public void savePages(TfsFileVersionControllerBenchmark benchmark) throws IOException {
+            File threadFolder = new File(benchmark.wikiRoot, "Thread" + benchmark.threadNumbers.incrementAndGet());
+            char[] characters = new char[benchmark.pageBytes];
+            Arrays.fill(characters, 'x');
+            content = new String(characters).getBytes(StandardCharsets.UTF_8);
+
+            fileVersions = new FileVersion[benchmark.fileCount];
+            files = new File[benchmark.fileCount];
+            for (int i = 0; i < benchmark.fileCount; i++) {
+                files[i] = new File(threadFolder, "Page" + i + "/content.txt");
+                fileVersions[i] = new TfsFileVersion(files[i], content, "", new Date());
+            }
+            benchmark.controller.makeVersion(fileVersions);
+        }
+
+        /**
+         * @return the pages with content that differs from every earlier save, since saving unchanged content checks
+         * nothing in.
+         */
+        private FileVersion[] changedVersions() {
+            byte[] changedContent = Arrays.copyOf(content, content.length);
+            byte[] save = Integer.toString(++saves).getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(save, 0, changedContent, 0, Math.min(save.length, changedContent.length));
+
+            FileVersion[] changedVersions = new FileVersion[files.length];
+            for (int i = 0; i < files.length; i++) {
+                changedVersions[i] = new TfsFileVersion(files[i], changedContent, "", new Date());
+            }
+            return changedVersions;
+        }
+    }
+
+    /**
+     * Saves the thread's pages again before every delete, so each delete has something to remove.  Per-invocation
+     * setup adds some timing overhead, which is small next to a check-in.
+     */
+    @State(Scope.Thread)
+    public static class SavedPages {
+        @Setup(Level.Invocation)
+        public void savePages(TfsFileVersionControllerBenchmark benchmark, Pages pages) throws IOException {
+            benchmark.controller.makeVersion(pages.fileVersions);
+        }
+    }
+
+    @Benchmark
+    public FileVersion[] getRevisionData(Pages pages) {
+        return controller.getRevisionData(null, pages.files);
+    }
+
+    @Benchmark
+    public VersionInfo makeVersion(Pages pages) throws IOException {
+        return controller.makeVersion(pages.changedVersions());
+    }
+
+    @Benchmark
+    public Collection<? extends VersionInfo> history(Pages pages) {
+        return controller.history(pages.files);
+    }
+
+    @Benchmark
+    public void delete(Pages pages, SavedPages savedPages) {
+        controller.delete(pages.fileVersions);
+    }
+
+    @Threads(8)
+    public static class Concurrent extends TfsFileVersionControllerBenchmark {
+    }
+}
@@ -0,0 +1,93 @@
+package fitnesse.wiki.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The version control operations the controller needs.  {@link TfsWrapper} talks to a real TFS server; anything else
+ * implementing this, such as an in-memory server for tests, can be handed to
+ * {@link TfsFileVersionController#TfsFileVersionController(java.util.Properties, TfsBackend)} instead.
+ * <p>
+ * Implementations are called from many wiki request threads at once.
+ */
+public interface TfsBackend {
+    /**
+     * @return for each file, in the same order, a file holding the server's latest content, or null if the file isn't
+     * mapped or isn't on the server.
+     */
+    File[] getRepositoryFiles(File... localFiles);
+
+    /**
+     * @return the server path the local file is mapped to, or null if it isn't mapped.
+     */
+    String getServerPath(File localFile);
+
+    /**
+     * @return the content of the server item as it was at the changeset, or null if the item didn't exist then.
+     */
+    byte[] getRevisionContent(String serverPath, int changesetId) throws IOException;
+
+    /**
+     * @return the changesets that touched the server path from the given changeset onwards, newest first.
+     */
+    List<TfsHistoryEntry> getHistory(String serverPath, int fromChangesetId);
+
+    /**
+     * @return the content hash of every file on the server under the local folder, by the local file it is mapped
+     * to, read with a single listing.
+     */
+    Map<File, byte[]> getServerFileHashes(File localFolder);
+
+    /**
+     * @return the files that have been checked in on the server by someone else since they were last read or checked
+     * in through this backend, or that differ from the server when they haven't been.
+     */
+    List<File> findConflicts(File... localFiles);
+
+    TfsCheckinResult checkinFiles(String comment, File... localFiles);
+
+    TfsCheckinResult deleteFiles(String comment, File... localFiles);
+
+    /**
+     * Sends saves and deletes together as one changeset per workspace.  A file must not be both saved and deleted in
+     * the same call.
+     */
+    TfsCheckinResult checkin(String comment, File[] savedFiles, File[] deletedFiles);
+
+    /**
+     * Renames or moves a file or folder, with everything under it, on the server and on disk as one changeset, so
+     * the history of each item carries on under its new name.
+     *
+     * @return null, leaving the local files alone, if the original isn't on the server or the new name is in a
+     * different workspace.
+     */
+    TfsCheckinResult rename(String comment, File originalFile, File renamedFile);
+
+    /**
+     * Adds the folder and the files in it that aren't on the server yet as one changeset.  A folder without any files
+     * to add isn't pended at all, so an abandoned one leaves nothing behind; it is added with the first file saved in
+     * it.
+     *
+     * @param localFiles the files under the folder to add, leaving out anything that is to be kept out of TFS.
+     */
+    TfsCheckinResult addFolder(String comment, File localFolder, File... localFiles);
+
+    /**
+     * Makes one call to the server.
+     *
+     * @throws RuntimeException if the server can't be reached.
+     */
+    void checkConnection();
+
+    /**
+     * @return where errors that don't fail a call are reported.
+     */
+    TfsNonFatalErrorRouter getNonFatalErrorRouter();
+
+    /**
+     * @return the local folders the workspaces map to the server, leaving out cloaked ones.
+     */
+    List<File> getMappedFolders();
+}
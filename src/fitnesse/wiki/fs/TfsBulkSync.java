@@ -0,0 +1,195 @@
+package fitnesse.wiki.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Logger;
+
+/**
+ * Brings the server copy of a whole folder into line with the local files, for putting an existing wiki under TFS.
+ * <p>
+ * The local tree is walked and hashed in parallel and compared with one recursive listing of the server folder.  New
+ * and changed files and files missing locally are then checked in in batches, one changeset per batch, rather than one
+ * changeset per file.  As each run works out what to send by comparing the two trees, a sync that was interrupted
+ * carries on from the last batch checked in when it is run again.
+ * <p>
+ * {@link #syncOnce(File, File)} writes a marker once every change is checked in and skips folders it records, so a
+ * sync left configured doesn't run again on every startup and delete server files that have since gone missing
+ * locally.  Progress is recorded in {@link TfsMetrics} as well as logged.
+ */
+public class TfsBulkSync {
+    private static final Logger LOG = Logger.getLogger(TfsBulkSync.class.getName());
+
+    private final TfsBackend backend;
+    private final int batchSize;
+    private final TfsIgnoreFilter ignoreFilter;
+    private final TfsMetrics metrics;
+    private final TfsContentHashes contentHashes = new TfsContentHashes();
+    private volatile int changesFound;
+    private volatile int changesSent;
+
+    /**
+     * @param ignoreFilter files it ignores are neither sent nor deleted from the server.
+     */
+    public TfsBulkSync(TfsBackend backend, int batchSize, TfsIgnoreFilter ignoreFilter, TfsMetrics metrics) {
+        this.backend = backend;
+        this.batchSize = Math.max(1, batchSize);
+        this.ignoreFilter = ignoreFilter;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Syncs the folder unless the marker records that it has already been synced, and records it in the marker once
+     * the sync has checked in every change.
+     *
+     * @return null if the folder had already been synced.
+     */
+    public TfsCheckinResult syncOnce(File localFolder, File marker) {
+        String folder = localFolder.getAbsoluteFile().toPath().normalize().toString();
+        if (isSynced(folder, marker)) {
+            LOG.info(String.format("Bulk sync of %s already finished, as recorded in %s", folder, marker));
+            return null;
+        }
+
+        TfsCheckinResult result = sync(localFolder);
+        try {
+            Files.write(marker.toPath(), folder.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            LOG.warning(String.format("Could not record the finished bulk sync of %s in %s, so it will run again on the next startup: %s",
+                    folder, marker, e.getMessage()));
+        }
+        return result;
+    }
+
+    public TfsCheckinResult sync(File localFolder) {
+        File folder = localFolder.getAbsoluteFile().toPath().normalize().toFile();
+        Map<File, byte[]> serverHashes = backend.getServerFileHashes(folder);
+        Map<File, byte[]> localHashes;
+        ForkJoinPool walker = new ForkJoinPool();
+        try {
+            localHashes = walker.invoke(new HashFolder(folder));
+        } finally {
+            walker.shutdown();
+        }
+
+        List<File> savedFiles = new ArrayList<File>();
+        for (Map.Entry<File, byte[]> localHash : localHashes.entrySet()) {
+            byte[] serverHash = serverHashes.get(localHash.getKey());
+            if (serverHash == null || !Arrays.equals(serverHash, localHash.getValue())) savedFiles.add(localHash.getKey());
+        }
+        List<File> deletedFiles = new ArrayList<File>();
+        for (File serverFile : serverHashes.keySet()) {
+            if (!localHashes.containsKey(serverFile) && !ignoreFilter.isIgnored(serverFile)) deletedFiles.add(serverFile);
+        }
+        changesFound = savedFiles.size() + deletedFiles.size();
+        changesSent = 0;
+        metrics.recordBulkSyncProgress(changesFound, changesSent);
+        LOG.info(String.format("Bulk sync of %s: %d files to save and %d to delete", folder, savedFiles.size(), deletedFiles.size()));
+
+        TfsCheckinResult result = new TfsCheckinResult();
+        int batches = (changesFound + batchSize - 1) / batchSize;
+        for (int batch = 0; batch < batches; batch++) {
+            int from = batch * batchSize;
+            int to = Math.min(from + batchSize, changesFound);
+            List<File> saved = slice(savedFiles, 0, from, to);
+            List<File> deleted = slice(deletedFiles, savedFiles.size(), from, to);
+
+            TfsCheckinResult batchResult = backend.checkin(String.format("Bulk sync of %s (%d of %d)", folder, batch + 1, batches),
+                    saved.toArray(new File[saved.size()]), deleted.toArray(new File[deleted.size()]));
+            TfsFileVersionController.report(batchResult);
+            for (Integer changesetId : batchResult.getChangesetIds()) {
+                result.addChangeset(changesetId);
+            }
+            result.addNonFatalErrors(batchResult.getNonFatalErrors());
+            changesSent = to;
+            metrics.recordBulkSyncProgress(changesFound, changesSent);
+            LOG.info(String.format("Bulk sync of %s: %d of %d changes checked in", folder, changesSent, changesFound));
+        }
+        return result;
+    }
+
+    /**
+     * @return how many files the last sync found to save or delete.
+     */
+    public int getChangesFound() {
+        return changesFound;
+    }
+
+    /**
+     * @return how many of the changes found have been checked in so far.
+     */
+    public int getChangesSent() {
+        return changesSent;
+    }
+
+    private static boolean isSynced(String folder, File marker) {
+        if (!marker.isFile()) return false;
+        try {
+            return new String(Files.readAllBytes(marker.toPath()), StandardCharsets.UTF_8).trim().equals(folder);
+        } catch (IOException e) {
+            LOG.warning(String.format("Could not read the bulk sync marker %s, so the sync will run: %s", marker, e.getMessage()));
+            return false;
+        }
+    }
+
+    /**
+     * @return the part of the files, which start at the given position in the list of all changes, that falls in
+     * the batch from {@code from} to {@code to}.
+     */
+    private static List<File> slice(List<File> files, int offset, int from, int to) {
+        int start = Math.max(0, from - offset);
+        int end = Math.min(files.size(), to - offset);
+        return start >= end ? new ArrayList<File>() : files.subList(start, end);
+    }
+
+    private class HashFolder extends RecursiveTask<Map<File, byte[]>> {
+        private final File folder;
+
+        private HashFolder(File folder) {
+            this.folder = folder;
+        }
+
+        @Override
+        protected Map<File, byte[]> compute() {
+            Map<File, byte[]> hashes = new HashMap<File, byte[]>();
+            File[] children = folder.listFiles();
+            if (children == null) return hashes;
+
+            List<HashFolder> subfolders = new ArrayList<HashFolder>();
+            for (File child : children) {
+                if (ignoreFilter.isIgnored(child)) continue;
+                if (child.isDirectory()) {
+                    if (isWorkspaceMetadata(child)) continue;
+                    HashFolder subfolder = new HashFolder(child);
+                    subfolder.fork();
+                    subfolders.add(subfolder);
+                } else {
+                    try {
+                        hashes.put(child, contentHashes.hash(child));
+                    } catch (IOException e) {
+                        LOG.warning(String.format("Bulk sync is skipping %s, which could not be read: %s", child, e.getMessage()));
+                    }
+                }
+            }
+            for (HashFolder subfolder : subfolders) {
+                hashes.putAll(subfolder.join());
+            }
+            return hashes;
+        }
+    }
+
+    /**
+     * TFS keeps the state of a local workspace in a $tf or .tf folder, which is never checked in.
+     */
+    private static boolean isWorkspaceMetadata(File folder) {
+        return folder.getName().equalsIgnoreCase("$tf") || folder.getName().equalsIgnoreCase(".tf");
+    }
+}
@@ -0,0 +1,167 @@
+package fitnesse.wiki.fs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches for changesets checked in by anyone, so cached item metadata can be kept for a long time without going
+ * stale.
+ * <p>
+ * Each poll asks only for the latest changeset number.  When it has moved on, the history since the last poll of each
+ * server folder mapped in this computer's workspaces is read once with its changes, and just the changed paths are
+ * invalidated in the {@link TfsItemMetadataCache}.  Optionally those paths are also got into the workspaces mapping
+ * them, so the local files stay current for when TFS can't be reached.
+ */
+public class TfsChangesetWatcher {
+    private static final Logger LOG = Logger.getLogger(TfsChangesetWatcher.class.getName());
+
+    private final TfsVersionControl versionControl;
+    private final TfsWorkspaceMappings workspaceMappings;
+    private final TfsItemMetadataCache itemMetadataCache;
+    private final boolean getLatest;
+    private final TfsMetrics metrics;
+    private final ScheduledExecutorService poller;
+    private int lastSeenChangesetId;
+
+    public TfsChangesetWatcher(TfsVersionControl versionControl, TfsWorkspaceMappings workspaceMappings,
+                               TfsItemMetadataCache itemMetadataCache, int pollSeconds, boolean getLatest, TfsMetrics metrics) {
+        this.versionControl = versionControl;
+        this.workspaceMappings = workspaceMappings;
+        this.itemMetadataCache = itemMetadataCache;
+        this.getLatest = getLatest;
+        this.metrics = metrics;
+
+        poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tfs-changeset-watcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (pollSeconds > 0) {
+            poller.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        poll();
+                    } catch (RuntimeException e) {
+                        LOG.warning("Could not check TFS for new changesets: " + e.getMessage());
+                    }
+                }
+            }, 0, pollSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Invalidates the paths changed since the last poll.  The first poll only notes the latest changeset, as nothing
+     * has been cached before it.
+     */
+    public synchronized void poll() {
+        int latestChangesetId;
+        long started = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            latestChangesetId = versionControl.getLatestChangesetId();
+            succeeded = true;
+        } finally {
+            metrics.record(TfsMetrics.Operation.CHANGESET_POLL, started, succeeded);
+        }
+        if (lastSeenChangesetId == 0 || latestChangesetId <= lastSeenChangesetId) {
+            lastSeenChangesetId = Math.max(lastSeenChangesetId, latestChangesetId);
+            return;
+        }
+
+        List<TfsWorkspace> localWorkspaces = new ArrayList<TfsWorkspace>(workspaceMappings.getWorkspaces());
+        Set<String> changedPaths = new LinkedHashSet<String>();
+        for (String serverFolder : getServerFolders(localWorkspaces)) {
+            changedPaths.addAll(getChangedPaths(serverFolder, lastSeenChangesetId + 1, latestChangesetId));
+        }
+        for (String changedPath : changedPaths) {
+            itemMetadataCache.invalidate(changedPath);
+        }
+        if (getLatest && !changedPaths.isEmpty()) {
+            for (TfsWorkspace workspace : localWorkspaces) {
+                List<String> mappedPaths = new ArrayList<String>();
+                for (String changedPath : changedPaths) {
+                    if (workspace.getMappedLocalPath(changedPath) != null) mappedPaths.add(changedPath);
+                }
+                if (!mappedPaths.isEmpty()) get(workspace, mappedPaths);
+            }
+        }
+        if (LOG.isLoggable(Level.FINE))
+            LOG.fine(String.format("Changesets %d to %d checked in since the last poll", lastSeenChangesetId + 1, latestChangesetId));
+        lastSeenChangesetId = latestChangesetId;
+    }
+
+    /**
+     * Stops polling in the background.
+     */
+    public void close() {
+        poller.shutdownNow();
+    }
+
+    /**
+     * @return the server folders mapped in the workspaces, leaving out any under another one, so each changed path is
+     * only asked for once.
+     */
+    private static Collection<String> getServerFolders(List<TfsWorkspace> workspaces) {
+        Map<String, String> serverFoldersByKey = new TreeMap<String, String>();
+        for (TfsWorkspace workspace : workspaces) {
+            for (TfsWorkingFolder folder : workspace.getFolders()) {
+                if (folder.isCloaked() || folder.getServerItem() == null) continue;
+                serverFoldersByKey.put(toKey(folder.getServerItem()), folder.getServerItem());
+            }
+        }
+        String previousKey = null;
+        for (Iterator<String> keys = serverFoldersByKey.keySet().iterator(); keys.hasNext(); ) {
+            String key = keys.next();
+            if (previousKey != null && key.startsWith(previousKey)) {
+                keys.remove();
+            } else {
+                previousKey = key.endsWith("/") ? key : key + "/";
+            }
+        }
+        return serverFoldersByKey.values();
+    }
+
+    private Set<String> getChangedPaths(String serverFolder, int fromChangesetId, int toChangesetId) {
+        long started = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            Set<String> changedPaths = versionControl.queryChangedPaths(serverFolder, fromChangesetId, toChangesetId);
+            succeeded = true;
+            return changedPaths;
+        } finally {
+            metrics.record(TfsMetrics.Operation.HISTORY_QUERY, started, succeeded);
+        }
+    }
+
+    private void get(TfsWorkspace workspace, List<String> serverPaths) {
+        long started = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            workspace.get(serverPaths.toArray(new String[serverPaths.size()]));
+            succeeded = true;
+        } finally {
+            metrics.record(TfsMetrics.Operation.DOWNLOAD, started, succeeded);
+        }
+    }
+
+    private static String toKey(String serverPath) {
+        return serverPath.toLowerCase(Locale.ROOT);
+    }
+}
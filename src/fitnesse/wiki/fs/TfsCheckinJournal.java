@@ -0,0 +1,85 @@
+package fitnesse.wiki.fs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Append-only file of the operations waiting to be sent to TFS, one per line, so they survive a restart.  Every
+ * append is forced to disk before it returns.  Each line keeps when the operation's file was first queued and how many
+ * saves it holds, so coalescing carries on where it was after a restart.
+ */
+public class TfsCheckinJournal {
+    private static final Logger LOG = Logger.getLogger(TfsCheckinJournal.class.getName());
+    private static final String SEPARATOR = "\t";
+
+    private final File journalFile;
+
+    public TfsCheckinJournal(File journalFile) {
+        this.journalFile = journalFile.getAbsoluteFile();
+        File folder = this.journalFile.getParentFile();
+        if (folder != null && !folder.isDirectory() && !folder.mkdirs())
+            throw new TfsFileVersionControllerException("Could not create the folder for the TFS check-in journal " + this.journalFile);
+    }
+
+    public void append(TfsPendingOperation operation) throws IOException {
+        try (FileOutputStream output = new FileOutputStream(journalFile, true)) {
+            output.write(toLine(operation).getBytes(StandardCharsets.UTF_8));
+            output.getChannel().force(false);
+        }
+    }
+
+    /**
+     * @return every operation in the journal in the order it was appended.  Lines that can't be read, such as one
+     * half written when the server stopped, are skipped.  Lines written before the first queued time and save count
+     * were kept are read as a single save or delete queued at that time.
+     */
+    public List<TfsPendingOperation> read() throws IOException {
+        List<TfsPendingOperation> operations = new ArrayList<TfsPendingOperation>();
+        if (!journalFile.isFile()) return operations;
+
+        for (String line : Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8)) {
+            String[] fields = line.split(SEPARATOR);
+            if (fields.length != 3 && fields.length != 5) continue;
+            try {
+                TfsPendingOperation.Type type = TfsPendingOperation.Type.valueOf(fields[0]);
+                long queuedMillis = Long.parseLong(fields[1]);
+                File file = new File(fields[2]);
+                if (fields.length == 3) {
+                    operations.add(new TfsPendingOperation(type, file, queuedMillis));
+                } else {
+                    operations.add(new TfsPendingOperation(type, file, queuedMillis, Long.parseLong(fields[3]), Integer.parseInt(fields[4])));
+                }
+            } catch (IllegalArgumentException e) {
+                LOG.warning(String.format("Skipping unreadable line in %s: %s", journalFile, line));
+            }
+        }
+        return operations;
+    }
+
+    /**
+     * Replaces the journal with just the given operations.
+     */
+    public void rewrite(Collection<TfsPendingOperation> operations) throws IOException {
+        File newJournalFile = new File(journalFile.getPath() + ".new");
+        try (FileOutputStream output = new FileOutputStream(newJournalFile)) {
+            for (TfsPendingOperation operation : operations) {
+                output.write(toLine(operation).getBytes(StandardCharsets.UTF_8));
+            }
+            output.getChannel().force(false);
+        }
+        Files.move(newJournalFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String toLine(TfsPendingOperation operation) {
+        return operation.getType() + SEPARATOR + operation.getQueuedMillis() + SEPARATOR + operation.getFile().getPath()
+                + SEPARATOR + operation.getFirstQueuedMillis() + SEPARATOR + operation.getSaveCount() + "\n";
+    }
+}
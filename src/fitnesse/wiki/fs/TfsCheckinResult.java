@@ -0,0 +1,34 @@
+package fitnesse.wiki.fs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What happened when changes were sent to TFS: the changesets created and any non-fatal errors TFS reported, such as
+ * a file that couldn't be pended.
+ */
+public class TfsCheckinResult {
+    private final List<Integer> changesetIds = new ArrayList<Integer>();
+    private final List<String> nonFatalErrors = new ArrayList<String>();
+
+    public void addChangeset(int changesetId) {
+        changesetIds.add(changesetId);
+    }
+
+    public void addNonFatalErrors(List<String> errors) {
+        nonFatalErrors.addAll(errors);
+    }
+
+    public List<Integer> getChangesetIds() {
+        return Collections.unmodifiableList(changesetIds);
+    }
+
+    public List<String> getNonFatalErrors() {
+        return Collections.unmodifiableList(nonFatalErrors);
+    }
+
+    public boolean hasNonFatalErrors() {
+        return !nonFatalErrors.isEmpty();
+    }
+}
@@ -0,0 +1,34 @@
+package fitnesse.wiki.fs;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Version control clients, each with its own connection to the server, shared out to threads that only read from
+ * TFS so that item queries, downloads and history queries from different wiki requests don't queue behind each other.
+ */
+public class TfsClientPool {
+    private final BlockingQueue<TfsVersionControl> idleClients;
+
+    public TfsClientPool(List<TfsVersionControl> clients) {
+        if (clients.isEmpty()) throw new TfsFileVersionControllerException("The TFS client pool needs at least one client.");
+        idleClients = new ArrayBlockingQueue<TfsVersionControl>(clients.size(), false, clients);
+    }
+
+    /**
+     * Waits for an idle client.  Every client acquired must be given back with {@link #release(TfsVersionControl)}.
+     */
+    public TfsVersionControl acquire() {
+        try {
+            return idleClients.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TfsFileVersionControllerException("Interrupted while waiting for a TFS connection.");
+        }
+    }
+
+    public void release(TfsVersionControl client) {
+        idleClients.offer(client);
+    }
+}
@@ -0,0 +1,182 @@
+package fitnesse.wiki.fs;
+
+import fitnesse.wiki.fs.exceptions.TfsNotConnectedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getTfsServer;
+
+/**
+ * Connects to TFS on a background thread so the wiki starts without waiting for the server, retrying with a growing
+ * delay until it is reachable.  Until then {@link #isConnected()} is false and the controller works from the local
+ * files only.  A connection can also be made from a backend that is already connected, which is ready straight away.
+ * <p>
+ * A call that fails once connected is passed to {@link #failed(RuntimeException)}.  If the server can no longer be
+ * reached the connection goes back to not connected, and the backend is checked in the background with the same
+ * growing delay until the server is back.
+ */
+public class TfsConnection {
+    private static final Logger LOG = Logger.getLogger(TfsConnection.class.getName());
+    private static final long FIRST_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final long LONGEST_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final String tfsServerUri;
+    private final ScheduledExecutorService connector;
+    private final List<Runnable> connectedListeners = new CopyOnWriteArrayList<Runnable>();
+    private volatile CountDownLatch connected = new CountDownLatch(1);
+    private volatile TfsBackend backend;
+
+    public TfsConnection(final Properties properties) {
+        this(getTfsServer(properties), new Callable<TfsBackend>() {
+            @Override
+            public TfsBackend call() {
+                return new TfsWrapper(properties);
+            }
+        });
+    }
+
+    public TfsConnection(TfsBackend connectedBackend) {
+        this.tfsServerUri = connectedBackend.getClass().getSimpleName();
+        this.connector = newConnector();
+        this.backend = connectedBackend;
+        connected.countDown();
+    }
+
+    /**
+     * @param tfsServerUri where the backend connects to, for messages.
+     * @param backendFactory creates the backend, throwing if the server can't be reached.
+     */
+    public TfsConnection(String tfsServerUri, Callable<TfsBackend> backendFactory) {
+        this.tfsServerUri = tfsServerUri;
+        connector = newConnector();
+        scheduleConnect(backendFactory, 0, FIRST_RETRY_MILLIS);
+    }
+
+    private static ScheduledExecutorService newConnector() {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tfs-connection");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public boolean isConnected() {
+        return backend != null;
+    }
+
+    /**
+     * @throws TfsNotConnectedException if the connection hasn't been made yet.
+     */
+    public TfsBackend get() {
+        TfsBackend connectedBackend = backend;
+        if (connectedBackend == null) throw new TfsNotConnectedException(tfsServerUri);
+        return connectedBackend;
+    }
+
+    /**
+     * Waits for the connection to be made.
+     *
+     * @return true if connected, or false if still not connected after the timeout.
+     */
+    public boolean awaitConnected(long timeout, TimeUnit unit) throws InterruptedException {
+        return connected.await(timeout, unit);
+    }
+
+    /**
+     * Tells whether a call to the backend failed because TFS can no longer be reached.  If so the connection is
+     * marked down and reconnects in the background; otherwise the failure is the call's own.
+     *
+     * @return true if TFS can't be reached, so the caller should carry on from the local files.
+     */
+    public boolean failed(RuntimeException failure) {
+        final TfsBackend failedBackend = backend;
+        if (failedBackend == null) return true;
+        try {
+            failedBackend.checkConnection();
+            return false;
+        } catch (RuntimeException e) {
+            // The server can't be reached
+        }
+
+        synchronized (connectedListeners) {
+            if (backend != failedBackend) return true;
+            connected = new CountDownLatch(1);
+            backend = null;
+        }
+        LOG.warning(String.format("Lost the connection to TFS at %s, working from local files until it is back: %s",
+                tfsServerUri, failure.getMessage()));
+        scheduleConnect(new Callable<TfsBackend>() {
+            @Override
+            public TfsBackend call() {
+                failedBackend.checkConnection();
+                return failedBackend;
+            }
+        }, FIRST_RETRY_MILLIS, FIRST_RETRY_MILLIS * 2);
+        return true;
+    }
+
+    /**
+     * Runs the listener on the connection thread once connected, or straight away if already connected.  The listener
+     * runs once; it isn't run again when the connection comes back after being lost.
+     */
+    public void whenConnected(Runnable listener) {
+        synchronized (connectedListeners) {
+            if (!isConnected()) {
+                connectedListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    private void scheduleConnect(final Callable<TfsBackend> factory, long delayMillis, final long nextDelayMillis) {
+        connector.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connect(factory, nextDelayMillis);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void connect(Callable<TfsBackend> factory, long retryMillis) {
+        TfsBackend connectedBackend;
+        try {
+            connectedBackend = factory.call();
+        } catch (Exception | LinkageError e) {
+            LOG.warning(String.format("Could not connect to TFS at %s, working from local files and retrying in %d seconds: %s",
+                    tfsServerUri, TimeUnit.MILLISECONDS.toSeconds(retryMillis), e.getMessage()));
+            scheduleConnect(factory, retryMillis, Math.min(retryMillis * 2, LONGEST_RETRY_MILLIS));
+            return;
+        }
+
+        List<Runnable> listeners;
+        synchronized (connectedListeners) {
+            backend = connectedBackend;
+            listeners = new ArrayList<Runnable>(connectedListeners);
+            connectedListeners.clear();
+        }
+        LOG.info("Connected to TFS at " + tfsServerUri);
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Could not finish starting up after connecting to TFS", e);
+            }
+        }
+        connected.countDown();
+    }
+}
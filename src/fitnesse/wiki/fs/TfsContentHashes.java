@@ -0,0 +1,90 @@
+package fitnesse.wiki.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * MD5 hashes of local files, in the same form TFS stores as an item's content hash.  Hashes are remembered against
+ * the file's size and modification time so an unchanged file is only read once.
+ */
+public class TfsContentHashes {
+    private final ConcurrentMap<String, HashedFile> hashedFiles = new ConcurrentHashMap<String, HashedFile>();
+
+    /**
+     * @return true if the local file exists and has exactly the content described by the server hash.
+     */
+    public boolean matches(File localFile, byte[] serverHash) {
+        if (serverHash == null || serverHash.length == 0 || !localFile.isFile()) return false;
+        try {
+            return Arrays.equals(hash(localFile), serverHash);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public byte[] hash(File localFile) throws IOException {
+        String key = localFile.getAbsolutePath();
+        long length = localFile.length();
+        long lastModified = localFile.lastModified();
+
+        HashedFile hashedFile = hashedFiles.get(key);
+        if (hashedFile != null && hashedFile.length == length && hashedFile.lastModified == lastModified) {
+            return hashedFile.hash;
+        }
+
+        byte[] hash = md5(localFile);
+        hashedFiles.put(key, new HashedFile(length, lastModified, hash));
+        return hash;
+    }
+
+    public static String toHex(byte[] hash) {
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    public static byte[] md5(byte[] content) {
+        return newMd5().digest(content);
+    }
+
+    private static byte[] md5(File file) throws IOException {
+        MessageDigest digest = newMd5();
+        byte[] buffer = new byte[8192];
+        try (InputStream input = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available in this JVM", e);
+        }
+    }
+
+    private static class HashedFile {
+        private final long length;
+        private final long lastModified;
+        private final byte[] hash;
+
+        private HashedFile(long length, long lastModified, byte[] hash) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+}
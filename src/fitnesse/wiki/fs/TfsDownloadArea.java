@@ -0,0 +1,217 @@
+package fitnesse.wiki.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Folder that files are downloaded from TFS into, named after their content hash so the same content is only
+ * downloaded and stored once.
+ * <p>
+ * Each download area has a folder of its own under the configured folder, held with a file lock, so several FitNesse
+ * instances or controllers can share the configured folder.  Starting up deletes only the folders whose lock is free,
+ * which were left by instances that have stopped.  When the area holds more than its size limit, the least recently
+ * used files are deleted, except for files used in the last minute, which may still be being read.  A file deleted
+ * from under the area is downloaded again.
+ */
+public class TfsDownloadArea {
+    private static final Logger LOG = Logger.getLogger(TfsDownloadArea.class.getName());
+    private static final long MINIMUM_AGE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final String INSTANCE_FOLDER_PREFIX = "instance-";
+    private static final String LOCK_FILE_NAME = ".lock";
+
+    private final File folder;
+    private final FileChannel lockChannel;
+    private final long maximumBytes;
+    private final TfsMetrics metrics;
+    private final LinkedHashMap<String, Download> downloads = new LinkedHashMap<String, Download>(16, 0.75f, true);
+    private final ConcurrentMap<String, Object> downloadLocks = new ConcurrentHashMap<String, Object>();
+    private long bytes;
+
+    /**
+     * @param parentFolder the folder the area's own folder is made in.
+     */
+    public TfsDownloadArea(File parentFolder, long maximumBytes, TfsMetrics metrics) {
+        File parent = parentFolder.getAbsoluteFile();
+        this.folder = new File(parent, INSTANCE_FOLDER_PREFIX + UUID.randomUUID());
+        this.maximumBytes = maximumBytes;
+        this.metrics = metrics;
+        if (!folder.mkdirs())
+            throw new TfsFileVersionControllerException("Could not create the TFS download folder " + folder);
+        try {
+            lockChannel = FileChannel.open(new File(folder, LOCK_FILE_NAME).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            lockChannel.lock();
+        } catch (IOException e) {
+            throw new TfsFileVersionControllerException(String.format("Could not lock the TFS download folder %s: %s", folder, e.getMessage()));
+        }
+        purgeStopped(parent);
+    }
+
+    /**
+     * @return the file holding the item's content, downloading it unless the same content is already here.
+     */
+    public File download(TfsItem item, TfsVersionControl versionControl) {
+        String fileName = getFileName(item);
+        File file = new File(folder, fileName);
+        if (use(fileName)) return file;
+
+        Object lock = new Object();
+        Object existingLock = downloadLocks.putIfAbsent(fileName, lock);
+        if (existingLock != null) lock = existingLock;
+        synchronized (lock) {
+            File partialFile = new File(folder, fileName + "." + Thread.currentThread().getId() + ".part");
+            try {
+                if (use(fileName)) return file;
+
+                long started = System.nanoTime();
+                boolean succeeded = false;
+                try {
+                    versionControl.download(item, partialFile);
+                    succeeded = true;
+                } finally {
+                    metrics.record(TfsMetrics.Operation.DOWNLOAD, started, succeeded);
+                }
+                Files.move(partialFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                add(fileName, file.length());
+                return file;
+            } catch (IOException e) {
+                throw new TfsFileVersionControllerException(String.format("Could not store the download of %s in %s: %s", item.getServerItem(), folder, e.getMessage()));
+            } finally {
+                partialFile.delete();
+                downloadLocks.remove(fileName, lock);
+            }
+        }
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * Deletes the area's folder, and everything downloaded into it.
+     */
+    public synchronized void close() {
+        try {
+            lockChannel.close();
+        } catch (IOException e) {
+            LOG.warning(String.format("Could not unlock the TFS download folder %s: %s", folder, e.getMessage()));
+        }
+        delete(folder);
+        downloads.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return true if the file has been downloaded and is still there.
+     */
+    private synchronized boolean use(String fileName) {
+        Download download = downloads.get(fileName);
+        if (download == null) return false;
+        if (!new File(folder, fileName).isFile()) {
+            downloads.remove(fileName);
+            bytes -= download.length;
+            return false;
+        }
+        download.lastUsedMillis = System.currentTimeMillis();
+        return true;
+    }
+
+    private synchronized void add(String fileName, long length) {
+        Download previous = downloads.put(fileName, new Download(length, System.currentTimeMillis()));
+        if (previous != null) bytes -= previous.length;
+        bytes += length;
+        evict();
+    }
+
+    private void evict() {
+        long oldEnough = System.currentTimeMillis() - MINIMUM_AGE_MILLIS;
+        Iterator<Map.Entry<String, Download>> leastRecentlyUsed = downloads.entrySet().iterator();
+        while (bytes > maximumBytes && leastRecentlyUsed.hasNext()) {
+            Map.Entry<String, Download> download = leastRecentlyUsed.next();
+            if (download.getValue().lastUsedMillis > oldEnough) break;
+            try {
+                Files.deleteIfExists(new File(folder, download.getKey()).toPath());
+            } catch (IOException e) {
+                continue;
+            }
+            leastRecentlyUsed.remove();
+            bytes -= download.getValue().length;
+        }
+    }
+
+    /**
+     * Deletes the folders of download areas that are no longer locked.
+     */
+    private void purgeStopped(File parent) {
+        File[] instanceFolders = parent.listFiles();
+        if (instanceFolders == null) return;
+        for (File instanceFolder : instanceFolders) {
+            if (!instanceFolder.isDirectory() || !instanceFolder.getName().startsWith(INSTANCE_FOLDER_PREFIX) || instanceFolder.equals(folder))
+                continue;
+            if (isInUse(instanceFolder)) continue;
+            delete(instanceFolder);
+        }
+    }
+
+    /**
+     * @return true if the folder is locked, or was made too recently to have been locked yet.
+     */
+    private static boolean isInUse(File instanceFolder) {
+        File lockFile = new File(instanceFolder, LOCK_FILE_NAME);
+        if (!lockFile.isFile()) return instanceFolder.lastModified() > System.currentTimeMillis() - MINIMUM_AGE_MILLIS;
+        try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) return true;
+            lock.release();
+            return false;
+        } catch (IOException | OverlappingFileLockException e) {
+            return true;
+        }
+    }
+
+    private static void delete(File instanceFolder) {
+        File[] files = instanceFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) LOG.warning("Could not delete old TFS download " + file);
+            }
+        }
+        if (!instanceFolder.delete()) LOG.warning("Could not delete the old TFS download folder " + instanceFolder);
+    }
+
+    private static String getFileName(TfsItem item) {
+        byte[] contentHash = item.getContentHash();
+        if (contentHash != null && contentHash.length > 0) return TfsContentHashes.toHex(contentHash);
+        String itemVersion = item.getServerItem() + ";" + item.getChangesetId();
+        return "v" + TfsContentHashes.toHex(TfsContentHashes.md5(itemVersion.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static class Download {
+        private final long length;
+        private long lastUsedMillis;
+
+        private Download(long length, long lastUsedMillis) {
+            this.length = length;
+            this.lastUsedMillis = lastUsedMillis;
+        }
+    }
+}
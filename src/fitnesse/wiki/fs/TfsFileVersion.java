@@ -4,42 +4,71 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * A version of a file whose content is either held in memory or read from a file on disk.
+ * <p>
+ * The content file is opened when the version is made, so it can still be read if the {@link TfsDownloadArea} evicts
+ * it before anyone asks for the content: an open file stays readable after it is deleted, or on Windows can't be
+ * deleted until it is closed.  The first content stream reads from that channel and closes it when it is closed.
+ * Closing the stream leaves the file alone, since it is either a local workspace copy or a download shared through
+ * the download area, which deletes it when it evicts it or closes.
+ */
 public class TfsFileVersion implements FileVersion {
     private final File file;
     private final byte[] content;
+    private final File contentFile;
+    private final AtomicReference<FileChannel> contentChannel;
     private final String author;
     private final Date lastModified;
 
     public TfsFileVersion(File file, byte[] content, String author, Date modified) {
         this.file = file;
         this.content = content;
+        this.contentFile = null;
+        this.contentChannel = null;
+        this.author = author;
+        this.lastModified = modified;
+    }
+
+    /**
+     * @throws IOException if the content file can't be opened.
+     */
+    public TfsFileVersion(File file, File contentFile, String author, Date modified) throws IOException {
+        this.file = file;
+        this.content = null;
+        this.contentFile = contentFile;
+        this.contentChannel = new AtomicReference<FileChannel>(FileChannel.open(contentFile.toPath(), StandardOpenOption.READ));
         this.author = author;
         this.lastModified = modified;
     }
 
     @Override
     public File getFile() {
-        System.out.println("Getting file:"+file.exists());
         return file;
     }
 
     @Override
     public InputStream getContent() throws IOException {
-        System.out.println("Getting content:"+content.length);
-        return new ByteArrayInputStream(content);
+        if (content != null) return new ByteArrayInputStream(content);
+
+        FileChannel channel = contentChannel.getAndSet(null);
+        if (channel == null) channel = FileChannel.open(contentFile.toPath(), StandardOpenOption.READ);
+        return Channels.newInputStream(channel);
     }
 
     @Override
     public String getAuthor() {
-        System.out.println("Getting author:"+author);
         return author;
     }
 
     @Override
     public Date getLastModificationTime() {
-        System.out.println("Getting time:"+lastModified);
         return lastModified;
     }
 }
@@ -1,94 +1,437 @@
 package fitnesse.wiki.fs;
 
-import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.Changeset;
 import fitnesse.wiki.VersionInfo;
+import fitnesse.wiki.fs.exceptions.ChangedOnServerSinceLastReadException;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getBulkSyncBatchSize;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getBulkSyncFolder;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getBulkSyncMarker;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getCoalesceLongestHoldSeconds;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getCoalesceWindowSeconds;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getHistoryDepth;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getHistoryIndexFolder;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getIgnorePatterns;
 import static fitnesse.wiki.fs.TfsPropertiesHelper.getNativeTfsFolder;
-import static fitnesse.wiki.fs.TfsPropertiesHelper.getTfsServer;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getRevisionCacheBytes;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getRevisionCacheSpillBytes;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getRevisionCacheSpillFolder;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getWriteBehindJournal;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.isWriteBehind;
 
 public class TfsFileVersionController implements VersionsController {
     public static final String NATIVE_FOLDER_SYSTEM_PROPERTY_KEY = "com.microsoft.tfs.jni.native.base-directory";
+    private static final Logger LOG = Logger.getLogger(TfsFileVersionController.class.getName());
     private final VersionsController persistence;
-    private final TfsWrapper tfsWrapper;
+    private final TfsConnection connection;
+    private final TfsRevisionContentCache revisionContentCache;
+    private final TfsWriteBehindQueue writeBehindQueue;
+    private final boolean writeBehind;
+    private final TfsHistoryIndex historyIndex;
+    private final int historyDepth;
+    private final TfsIgnoreFilter ignoreFilter;
 
     public TfsFileVersionController(Properties properties) {
-        System.setProperty(NATIVE_FOLDER_SYSTEM_PROPERTY_KEY, getNativeTfsFolder(properties));
-        tfsWrapper = new TfsWrapper(getTfsServer(properties));
+        this(properties, connect(properties));
+    }
+
+    /**
+     * Uses the given backend instead of connecting to the TFS server in the properties.
+     */
+    public TfsFileVersionController(Properties properties, TfsBackend backend) {
+        this(properties, new TfsConnection(backend));
+    }
+
+    private TfsFileVersionController(Properties properties, TfsConnection connection) {
+        this.connection = connection;
         persistence = new SimpleFileVersionsController(new DiskFileSystem());
+        revisionContentCache = new TfsRevisionContentCache(getRevisionCacheBytes(properties),
+                getRevisionCacheSpillFolder(properties), getRevisionCacheSpillBytes(properties));
+        historyIndex = new TfsHistoryIndex(connection, getHistoryIndexFolder(properties));
+        historyDepth = getHistoryDepth(properties);
+        long coalesceWindowMillis = TimeUnit.SECONDS.toMillis(getCoalesceWindowSeconds(properties));
+        writeBehind = isWriteBehind(properties) || coalesceWindowMillis > 0;
+        writeBehindQueue = createWriteBehindQueue(getWriteBehindJournal(properties), coalesceWindowMillis,
+                TimeUnit.SECONDS.toMillis(getCoalesceLongestHoldSeconds(properties)));
+        ignoreFilter = new TfsIgnoreFilter(getIgnorePatterns(properties));
+        connection.whenConnected(new Runnable() {
+            @Override
+            public void run() {
+                ignoreFilter.setMappedFolders(connection.get().getMappedFolders());
+            }
+        });
+        File bulkSyncFolder = getBulkSyncFolder(properties);
+        if (bulkSyncFolder != null) startBulkSync(bulkSyncFolder, getBulkSyncBatchSize(properties), getBulkSyncMarker(properties));
+    }
+
+    private static TfsConnection connect(Properties properties) {
+        System.setProperty(NATIVE_FOLDER_SYSTEM_PROPERTY_KEY, getNativeTfsFolder(properties));
+        return new TfsConnection(properties);
+    }
+
+    /**
+     * Syncs the folder with TFS in the background once connected, leaving the wiki to serve pages meanwhile, unless the
+     * marker records that it has already been synced.
+     */
+    private void startBulkSync(final File folder, final int batchSize, final File marker) {
+        connection.whenConnected(new Runnable() {
+            @Override
+            public void run() {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            new TfsBulkSync(connection.get(), batchSize, ignoreFilter, TfsMetrics.shared()).syncOnce(folder, marker);
+                        } catch (RuntimeException e) {
+                            LOG.log(Level.WARNING, String.format("Bulk sync of %s stopped; restart to carry on from where it got to.", folder), e);
+                        }
+                    }
+                }, "tfs-bulk-sync");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        });
     }
 
+    private TfsWriteBehindQueue createWriteBehindQueue(File journalFile, long coalesceWindowMillis, long longestHoldMillis) {
+        try {
+            return new TfsWriteBehindQueue(connection, new TfsCheckinJournal(journalFile), coalesceWindowMillis, longestHoldMillis);
+        } catch (IOException e) {
+            throw new TfsFileVersionControllerException(String.format("Could not read the TFS check-in journal %s: %s", journalFile, e.getMessage()));
+        }
+    }
+
+    /**
+     * Reads the files from TFS, or from the local disk while TFS can't be reached.  For a past revision, a file that
+     * wasn't on the server at that changeset has a null version rather than its latest content.
+     */
     @Override
     public FileVersion[] getRevisionData(String revision, File... files) {
+        if (!connection.isConnected()) return persistence.getRevisionData(null, files);
+
+        try {
+            return getServerRevisionData(revision, files);
+        } catch (RuntimeException e) {
+            if (!connection.failed(e)) throw e;
+            return persistence.getRevisionData(null, files);
+        }
+    }
+
+    private FileVersion[] getServerRevisionData(String revision, File... files) {
+        TfsBackend backend = connection.get();
         FileVersion[] fileVersions = new FileVersion[files.length];
+        int changesetId = parseChangesetId(revision);
 
-        int fileCounter = 0;
-        for (File localFile : files) {
+        List<Integer> latestIndexes = new ArrayList<Integer>();
+        for (int i = 0; i < files.length; i++) {
+            File localFile = files[i];
+            if (ignoreFilter.isIgnored(localFile) || writeBehindQueue.isPending(localFile)) {
+                fileVersions[i] = persistence.getRevisionData(null, localFile)[0];
+                continue;
+            }
+            String serverPath = changesetId > 0 ? backend.getServerPath(localFile) : null;
+            if (serverPath != null) {
+                try {
+                    byte[] content = getRevisionContent(backend, serverPath, changesetId);
+                    if (content != null) fileVersions[i] = new TfsFileVersion(localFile, content, null, new Date());
+                    continue;
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, String.format("Could not read %s at changeset %d from TFS, showing the latest version instead.",
+                            serverPath, changesetId), e);
+                }
+            }
+            latestIndexes.add(i);
+        }
+        if (latestIndexes.isEmpty()) return fileVersions;
 
-            File downloadedFile = tfsWrapper.getRepositoryFile(localFile);
+        File[] latestFiles = new File[latestIndexes.size()];
+        for (int i = 0; i < latestFiles.length; i++) {
+            latestFiles[i] = files[latestIndexes.get(i)];
+        }
+        File[] downloadedFiles = backend.getRepositoryFiles(latestFiles);
+        for (int i = 0; i < latestFiles.length; i++) {
+            File downloadedFile = downloadedFiles[i];
             if (downloadedFile != null) {
                 try {
-                    fileVersions[fileCounter] = new TfsFileVersion(downloadedFile, Files.readAllBytes(downloadedFile.toPath()), null, new Date());
+                    fileVersions[latestIndexes.get(i)] = new TfsFileVersion(latestFiles[i], downloadedFile, null, new Date());
+                    continue;
                 } catch (IOException e) {
-                    System.out.println("Whoops!  Saved the file from TFS to a temp location then couldn't open it or some such.");
-                    e.printStackTrace();
+                    LOG.warning(String.format("Could not open the download of %s, reading the local copy instead: %s", latestFiles[i], e.getMessage()));
                 }
-            } else {
-                fileVersions[fileCounter] = persistence.getRevisionData(null, localFile)[0];
             }
-            fileCounter++;
+            fileVersions[latestIndexes.get(i)] = persistence.getRevisionData(null, latestFiles[i])[0];
         }
 
         return fileVersions;
     }
 
+    public TfsRevisionContentCache getRevisionContentCache() {
+        return revisionContentCache;
+    }
+
+    /**
+     * @return the queue of changes waiting to be sent to TFS.  Changes only go through it in write-behind mode, while
+     * TFS can't be reached, and until it has sent everything queued before the connection was made.
+     */
+    public TfsWriteBehindQueue getWriteBehindQueue() {
+        return writeBehindQueue;
+    }
+
+    public TfsConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * @return the content of the server item as it was at the changeset, or null if it wasn't on the server then.
+     */
+    private byte[] getRevisionContent(TfsBackend backend, String serverPath, int changesetId) throws IOException {
+        byte[] content = revisionContentCache.get(serverPath, changesetId);
+        if (content != null) return content;
+
+        // A page's versions include changesets that only touched its other files, so look for the content under the
+        // changeset that last changed this file.
+        int contentChangesetId = historyIndex.findChangesetAt(serverPath, changesetId);
+        if (contentChangesetId > 0 && contentChangesetId != changesetId) {
+            content = revisionContentCache.get(serverPath, contentChangesetId);
+            if (content != null) return content;
+            changesetId = contentChangesetId;
+        }
+
+        content = backend.getRevisionContent(serverPath, changesetId);
+        if (content != null) revisionContentCache.put(serverPath, changesetId, content);
+        return content;
+    }
+
+    private static int parseChangesetId(String revision) {
+        if (revision == null) return 0;
+        try {
+            return Integer.parseInt(revision.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return one version for each changeset that touched any of the files, newest first, named by its changeset
+     * number so it can be passed back to {@link #getRevisionData(String, File...)}.
+     */
     @Override
     public Collection<? extends VersionInfo> history(File... files) {
-        ArrayList<VersionInfo> history = new ArrayList<VersionInfo>();
-        for (File file : files) {
-            List<Changeset> changesets = tfsWrapper.getHistory(file);
-            for (Changeset changeset : changesets) {
-                history.add(new VersionInfo(changeset.getComment(), changeset.getOwner(), changeset.getDate().getTime()));
+        File[] trackedFiles = ignoreFilter.tracked(files);
+        if (!connection.isConnected() || trackedFiles.length == 0) return persistence.history(files);
+
+        try {
+            return getServerHistory(trackedFiles);
+        } catch (RuntimeException e) {
+            if (!connection.failed(e)) throw e;
+            return persistence.history(files);
+        }
+    }
+
+    private Collection<? extends VersionInfo> getServerHistory(File[] trackedFiles) {
+        Map<Integer, TfsHistoryEntry> entriesByChangeset = new TreeMap<Integer, TfsHistoryEntry>(Collections.<Integer>reverseOrder());
+        for (File file : trackedFiles) {
+            String serverPath = connection.get().getServerPath(file);
+            if (serverPath == null) continue;
+            for (TfsHistoryEntry entry : historyIndex.getHistory(serverPath, historyDepth)) {
+                entriesByChangeset.put(entry.getChangesetId(), entry);
             }
         }
+
+        ArrayList<VersionInfo> history = new ArrayList<VersionInfo>(entriesByChangeset.size());
+        for (TfsHistoryEntry entry : entriesByChangeset.values()) {
+            history.add(new VersionInfo(String.valueOf(entry.getChangesetId()), entry.getOwner(), entry.getDate()));
+        }
         return history;
     }
 
     @Override
     public VersionInfo makeVersion(FileVersion... fileVersions) throws IOException {
-        persistence.makeVersion(fileVersions);
-        for (FileVersion fileVersion : fileVersions) {
-            File existingFile = tfsWrapper.getRepositoryFile(fileVersion.getFile());
+        File[] files = new File[fileVersions.length];
+        for (int i = 0; i < fileVersions.length; i++) {
+            files[i] = fileVersions[i].getFile();
+        }
+        File[] trackedFiles = ignoreFilter.tracked(files);
+        // Queued saves are checked for conflicts when they are sent, so queueing doesn't wait for the server
+        boolean queueing = isQueueing(trackedFiles);
+        if (!queueing && trackedFiles.length > 0) {
+            try {
+                List<File> conflicts = connection.get().findConflicts(trackedFiles);
+                if (!conflicts.isEmpty()) throw new ChangedOnServerSinceLastReadException(conflicts);
+            } catch (ChangedOnServerSinceLastReadException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                if (!connection.failed(e)) throw e;
+                queueing = true;
+            }
+        }
 
-            if (existingFile != null) {
-                tfsWrapper.checkinPending(fileVersion.getFile());
-            } else {
-                tfsWrapper.addToRepository(fileVersion.getFile());
+        persistence.makeVersion(fileVersions);
+        if (trackedFiles.length == 0) return new VersionInfo("", "", new Date());
+        if (!queueing) {
+            try {
+                TfsCheckinResult result = connection.get().checkinFiles(String.format("Saving %s", describe(trackedFiles)), trackedFiles);
+                report(result);
+                return new VersionInfo(changesetName(result), "", new Date());
+            } catch (RuntimeException e) {
+                if (!connection.failed(e)) throw e;
             }
         }
 
+        writeBehindQueue.save(trackedFiles);
         return new VersionInfo("", "", new Date());
     }
 
+    /**
+     * @return the number of the changeset the changes went into, or an empty name if none was made.
+     */
+    private static String changesetName(TfsCheckinResult result) {
+        List<Integer> changesetIds = result.getChangesetIds();
+        return changesetIds.isEmpty() ? "" : String.valueOf(changesetIds.get(changesetIds.size() - 1));
+    }
+
+    /**
+     * Changes are queued in write-behind mode, while TFS can't be reached, and while changes queued earlier are still
+     * being sent, so that they reach the server in the order they were made.  Parked changes don't hold back the
+     * others, but a change to a parked file is queued after it.
+     */
+    private boolean isQueueing(File... files) {
+        if (writeBehind || !connection.isConnected() || writeBehindQueue.getLiveQueueDepth() > 0) return true;
+        for (File file : files) {
+            if (writeBehindQueue.isPending(file)) return true;
+        }
+        return false;
+    }
+
+    static void report(TfsCheckinResult result) {
+        for (String error : result.getNonFatalErrors()) {
+            LOG.warning(String.format("TFS reported a problem with changesets %s: %s", result.getChangesetIds(), error));
+        }
+    }
+
+    static String describe(File... files) {
+        StringBuilder description = new StringBuilder();
+        for (File file : files) {
+            if (description.length() > 0) description.append(", ");
+            description.append(file.getPath());
+        }
+        return description.toString();
+    }
+
+    /**
+     * Adds the folder, and anything already in it, to TFS.  A new page's empty folder goes to TFS with the page's first
+     * saved file rather than in a changeset of its own.  While changes are being queued only the local folder is made,
+     * and its files reach TFS as they are saved.
+     */
     @Override
     public VersionInfo addDirectory(FileVersion filePath) throws IOException {
-        System.out.println("Add directory:" + filePath.getFile().getAbsolutePath());
-        return null;
+        persistence.addDirectory(filePath);
+        if (!isQueueing() && !ignoreFilter.isIgnored(filePath.getFile())) {
+            File folder = filePath.getFile();
+            try {
+                report(connection.get().addFolder(String.format("Adding %s", folder.getPath()), folder, ignoreFilter.tracked(listFiles(folder))));
+            } catch (RuntimeException e) {
+                if (!connection.failed(e)) throw e;
+            }
+        }
+        return new VersionInfo("", "", new Date());
     }
 
+    /**
+     * Renames or moves a page, with everything under it, as one TFS rename so its history follows it.  While changes
+     * are being queued, or when TFS can't rename it, the files are moved locally and sent as deletes of the old files
+     * and adds of the new ones.
+     */
     @Override
     public void rename(FileVersion fileVersion, File originalFile) throws IOException {
-        System.out.println("Rename file from:" + originalFile.getAbsolutePath() + " to " + fileVersion.getFile().getAbsolutePath());
+        File renamedFile = fileVersion.getFile();
+        String comment = String.format("Renaming %s to %s", originalFile.getPath(), renamedFile.getPath());
+        boolean queueing = isQueueing(listFiles(originalFile));
+        if (!queueing && !ignoreFilter.isIgnored(originalFile) && !ignoreFilter.isIgnored(renamedFile)) {
+            try {
+                TfsCheckinResult result = connection.get().rename(comment, originalFile, renamedFile);
+                if (result != null) {
+                    report(result);
+                    return;
+                }
+            } catch (RuntimeException e) {
+                if (!connection.failed(e)) throw e;
+                queueing = true;
+            }
+        }
+
+        File[] originalFiles = ignoreFilter.tracked(listFiles(originalFile));
+        persistence.rename(fileVersion, originalFile);
+        File[] renamedFiles = ignoreFilter.tracked(listFiles(renamedFile));
+        if (!queueing) {
+            try {
+                report(connection.get().checkin(comment, renamedFiles, originalFiles));
+                return;
+            } catch (RuntimeException e) {
+                if (!connection.failed(e)) throw e;
+            }
+        }
+        writeBehindQueue.delete(originalFiles);
+        writeBehindQueue.save(renamedFiles);
+    }
+
+    /**
+     * @return the file itself, or every file under it if it is a folder.
+     */
+    private static File[] listFiles(File file) {
+        List<File> files = new ArrayList<File>();
+        addFiles(file, files);
+        return files.toArray(new File[files.size()]);
+    }
+
+    private static void addFiles(File file, List<File> files) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            if (file.isFile()) files.add(file);
+            return;
+        }
+        for (File child : children) {
+            addFiles(child, files);
+        }
     }
 
     @Override
     public void delete(FileVersion... fileVersions) {
+        List<FileVersion> ignoredVersions = new ArrayList<FileVersion>();
+        List<File> trackedFiles = new ArrayList<File>();
         for (FileVersion fileVersion : fileVersions) {
-            tfsWrapper.delete(fileVersion.getFile());
+            if (ignoreFilter.isIgnored(fileVersion.getFile())) {
+                ignoredVersions.add(fileVersion);
+            } else {
+                trackedFiles.add(fileVersion.getFile());
+            }
+        }
+        File[] files = trackedFiles.toArray(new File[trackedFiles.size()]);
+
+        if (!ignoredVersions.isEmpty()) persistence.delete(ignoredVersions.toArray(new FileVersion[ignoredVersions.size()]));
+        if (files.length == 0) return;
+        if (!isQueueing(files)) {
+            try {
+                report(connection.get().deleteFiles(String.format("Deleting %s", describe(files)), files));
+                return;
+            } catch (RuntimeException e) {
+                if (!connection.failed(e)) throw e;
+            }
+        }
+
+        List<FileVersion> trackedVersions = new ArrayList<FileVersion>(Arrays.asList(fileVersions));
+        trackedVersions.removeAll(ignoredVersions);
+        persistence.delete(trackedVersions.toArray(new FileVersion[trackedVersions.size()]));
+        try {
+            writeBehindQueue.delete(files);
+        } catch (IOException e) {
+            throw new TfsFileVersionControllerException(String.format("Could not queue the delete of %s for TFS: %s", describe(files), e.getMessage()));
         }
     }
 }
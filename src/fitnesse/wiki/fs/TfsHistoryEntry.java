@@ -0,0 +1,40 @@
+package fitnesse.wiki.fs;
+
+import java.util.Date;
+
+/**
+ * The parts of a changeset shown on a page's history.
+ */
+public class TfsHistoryEntry {
+    private final int changesetId;
+    private final String owner;
+    private final String comment;
+    private final long dateMillis;
+
+    public TfsHistoryEntry(int changesetId, String owner, String comment, long dateMillis) {
+        this.changesetId = changesetId;
+        this.owner = owner == null ? "" : owner;
+        this.comment = comment == null ? "" : comment;
+        this.dateMillis = dateMillis;
+    }
+
+    public int getChangesetId() {
+        return changesetId;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public String getComment() {
+        return comment;
+    }
+
+    public Date getDate() {
+        return new Date(dateMillis);
+    }
+
+    public long getDateMillis() {
+        return dateMillis;
+    }
+}
@@ -0,0 +1,154 @@
+package fitnesse.wiki.fs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Local copy of the history of each server path, so that showing a page's versions only asks the server for
+ * changesets newer than the ones already seen.
+ * <p>
+ * Each path's history is kept in its own append-only file in the index folder, one changeset per line, and read into
+ * memory the first time the path is asked for.
+ */
+public class TfsHistoryIndex {
+    private static final Logger LOG = Logger.getLogger(TfsHistoryIndex.class.getName());
+    private static final String SEPARATOR = "\t";
+
+    private final TfsConnection connection;
+    private final File indexFolder;
+    private final ConcurrentMap<String, PathHistory> histories = new ConcurrentHashMap<String, PathHistory>();
+
+    public TfsHistoryIndex(TfsConnection connection, File indexFolder) {
+        this.connection = connection;
+        this.indexFolder = indexFolder;
+        if (!indexFolder.isDirectory() && !indexFolder.mkdirs())
+            throw new TfsFileVersionControllerException("Could not create the TFS history index folder " + indexFolder.getAbsolutePath());
+    }
+
+    /**
+     * @param maximumEntries the most entries to return, or 0 for all of them.
+     * @return the changesets that touched the server path, newest first.
+     */
+    public List<TfsHistoryEntry> getHistory(String serverPath, int maximumEntries) {
+        String key = serverPath.toLowerCase(Locale.ROOT);
+        PathHistory history = histories.get(key);
+        if (history == null) {
+            PathHistory newHistory = new PathHistory(new File(indexFolder, TfsContentHashes.toHex(TfsContentHashes.md5(key.getBytes(StandardCharsets.UTF_8)))));
+            history = histories.putIfAbsent(key, newHistory);
+            if (history == null) history = newHistory;
+        }
+        return history.update(serverPath, maximumEntries);
+    }
+
+    /**
+     * Works out, from the history already indexed and without asking TFS, which changeset the server path's content
+     * at the given changeset was checked in by.
+     *
+     * @return the newest changeset that touched the path at or before the given one, or 0 if the index doesn't reach
+     * past the given changeset or the path didn't exist then.
+     */
+    public int findChangesetAt(String serverPath, int changesetId) {
+        String key = serverPath.toLowerCase(Locale.ROOT);
+        PathHistory history = histories.get(key);
+        return history == null ? 0 : history.findChangesetAt(changesetId);
+    }
+
+    private class PathHistory {
+        private final File indexFile;
+        private List<TfsHistoryEntry> entries;
+
+        private PathHistory(File indexFile) {
+            this.indexFile = indexFile;
+        }
+
+        private synchronized List<TfsHistoryEntry> update(String serverPath, int maximumEntries) {
+            if (entries == null) entries = read();
+
+            int highestChangesetId = entries.isEmpty() ? 0 : entries.get(entries.size() - 1).getChangesetId();
+            List<TfsHistoryEntry> newEntries = new ArrayList<TfsHistoryEntry>(connection.get().getHistory(serverPath, highestChangesetId + 1));
+            Collections.reverse(newEntries);
+            if (!newEntries.isEmpty()) {
+                append(newEntries);
+                entries.addAll(newEntries);
+            }
+
+            int count = maximumEntries > 0 ? Math.min(maximumEntries, entries.size()) : entries.size();
+            List<TfsHistoryEntry> newestFirst = new ArrayList<TfsHistoryEntry>(count);
+            for (int i = entries.size() - 1; i >= entries.size() - count; i--) {
+                newestFirst.add(entries.get(i));
+            }
+            return newestFirst;
+        }
+
+        private synchronized int findChangesetAt(int changesetId) {
+            if (entries == null || entries.isEmpty() || entries.get(entries.size() - 1).getChangesetId() < changesetId) return 0;
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                if (entries.get(i).getChangesetId() <= changesetId) return entries.get(i).getChangesetId();
+            }
+            return 0;
+        }
+
+        private List<TfsHistoryEntry> read() {
+            List<TfsHistoryEntry> readEntries = new ArrayList<TfsHistoryEntry>();
+            if (!indexFile.isFile()) return readEntries;
+            try {
+                for (String line : Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8)) {
+                    String[] fields = line.split(SEPARATOR, 4);
+                    if (fields.length != 4) continue;
+                    try {
+                        readEntries.add(new TfsHistoryEntry(Integer.parseInt(fields[0]), unescape(fields[2]), unescape(fields[3]), Long.parseLong(fields[1])));
+                    } catch (NumberFormatException e) {
+                        LOG.warning(String.format("Skipping unreadable line in %s: %s", indexFile, line));
+                    }
+                }
+            } catch (IOException e) {
+                LOG.warning(String.format("Could not read history index %s, reading the whole history from TFS: %s", indexFile, e.getMessage()));
+                readEntries.clear();
+            }
+            return readEntries;
+        }
+
+        private void append(List<TfsHistoryEntry> newEntries) {
+            StringBuilder lines = new StringBuilder();
+            for (TfsHistoryEntry entry : newEntries) {
+                lines.append(entry.getChangesetId()).append(SEPARATOR)
+                        .append(entry.getDateMillis()).append(SEPARATOR)
+                        .append(escape(entry.getOwner())).append(SEPARATOR)
+                        .append(escape(entry.getComment())).append('\n');
+            }
+            try (FileOutputStream output = new FileOutputStream(indexFile, true)) {
+                output.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                LOG.warning(String.format("Could not add to history index %s: %s", indexFile, e.getMessage()));
+            }
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\r", "\\r").replace("\n", "\\n");
+    }
+
+    private static String unescape(String value) {
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                unescaped.append(next == 't' ? '\t' : next == 'r' ? '\r' : next == 'n' ? '\n' : next);
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+}
@@ -0,0 +1,216 @@
+package fitnesse.wiki.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which files are kept out of TFS, such as test histories and error logs, so they are saved and read locally
+ * without any calls to the server.
+ * <p>
+ * The patterns from plugins.properties are compiled once into a single regular expression.  The
+ * {@value #TFIGNORE_FILE_NAME} files in a file's folder and the folders above it, up to the mapped folder it is in, are
+ * read and compiled the first time a file under them is checked, so after that checking a file costs a map lookup per
+ * folder and a few regular expression matches.  A {@value #TFIGNORE_FILE_NAME} is read again when it has changed,
+ * which is looked at no more than once every {@value #RECHECK_MILLIS} milliseconds.
+ * <p>
+ * A pattern without a slash matches a file or folder of that name at any depth, and one with a slash matches that run
+ * of folders and file names.  Everything under a matched folder is ignored.  {@code *} and {@code ?} match within a
+ * name and {@code **} matches across folders.  In a {@value #TFIGNORE_FILE_NAME} file, as in TFS, lines starting with
+ * {@code #} are comments, a leading {@code \} or {@code /} ties the pattern to the file's own folder, and a leading
+ * {@code !} brings back files an earlier pattern ignored.  The nearest {@value #TFIGNORE_FILE_NAME} has the last word.
+ */
+public class TfsIgnoreFilter {
+    public static final String TFIGNORE_FILE_NAME = ".tfignore";
+
+    private static final Logger LOG = Logger.getLogger(TfsIgnoreFilter.class.getName());
+    private static final boolean CASE_INSENSITIVE_PATHS = File.separatorChar == '\\';
+    private static final long RECHECK_MILLIS = 1000;
+
+    private final Pattern propertiesPattern;
+    private final ConcurrentMap<File, IgnoreFile> ignoreFilesByFolder = new ConcurrentHashMap<File, IgnoreFile>();
+    private volatile Set<File> mappedFolders = Collections.emptySet();
+
+    public TfsIgnoreFilter(List<String> patterns) {
+        List<String> expressions = new ArrayList<String>();
+        for (String pattern : patterns) {
+            if (!pattern.trim().isEmpty()) expressions.add(toExpression(pattern.trim(), false));
+        }
+        propertiesPattern = expressions.isEmpty() ? null : compile(join(expressions));
+    }
+
+    /**
+     * Sets the folders mapped in TFS, above which {@value #TFIGNORE_FILE_NAME} files aren't looked for.  Until they are
+     * set, they are looked for all the way up.
+     */
+    public void setMappedFolders(Collection<File> folders) {
+        Set<File> normalisedFolders = new HashSet<File>();
+        for (File folder : folders) {
+            normalisedFolders.add(normalise(folder));
+        }
+        mappedFolders = normalisedFolders;
+    }
+
+    public boolean isIgnored(File file) {
+        File absoluteFile = normalise(file);
+        boolean ignored = propertiesPattern != null && propertiesPattern.matcher(toPath(absoluteFile)).matches();
+
+        File folder = absoluteFile.getParentFile();
+        if (folder == null) return ignored;
+        for (IgnoreFile ignoreFile : getIgnoreFiles(folder)) {
+            if (ignoreFile.includes == null && ignoreFile.excludes == null) continue;
+            String relativePath = toPath(absoluteFile).substring(ignoreFile.folderPath.length());
+            if (ignoreFile.includes != null && ignoreFile.includes.matcher(relativePath).matches()) ignored = true;
+            if (ignoreFile.excludes != null && ignoreFile.excludes.matcher(relativePath).matches()) ignored = false;
+        }
+        return ignored;
+    }
+
+    /**
+     * @return the files that aren't ignored, in the same order.
+     */
+    public File[] tracked(File... files) {
+        List<File> tracked = new ArrayList<File>(files.length);
+        for (File file : files) {
+            if (!isIgnored(file)) tracked.add(file);
+        }
+        return tracked.size() == files.length ? files : tracked.toArray(new File[tracked.size()]);
+    }
+
+    /**
+     * @return the {@value #TFIGNORE_FILE_NAME} files that apply to the folder, furthest first.
+     */
+    private List<IgnoreFile> getIgnoreFiles(File folder) {
+        Set<File> stopFolders = mappedFolders;
+        LinkedList<IgnoreFile> ignoreFiles = new LinkedList<IgnoreFile>();
+        for (File current = folder; current != null; current = current.getParentFile()) {
+            ignoreFiles.addFirst(getIgnoreFile(current));
+            if (stopFolders.contains(current)) break;
+        }
+        return ignoreFiles;
+    }
+
+    /**
+     * @return the folder's own {@value #TFIGNORE_FILE_NAME}, read again if it has changed since it was last read.
+     */
+    private IgnoreFile getIgnoreFile(File folder) {
+        long now = System.currentTimeMillis();
+        IgnoreFile ignoreFile = ignoreFilesByFolder.get(folder);
+        if (ignoreFile != null && now - ignoreFile.checkedMillis < RECHECK_MILLIS) return ignoreFile;
+
+        File file = new File(folder, TFIGNORE_FILE_NAME);
+        long lastModified = file.lastModified();
+        if (ignoreFile == null || ignoreFile.lastModified != lastModified) {
+            ignoreFile = read(folder, file, lastModified);
+            ignoreFilesByFolder.put(folder, ignoreFile);
+        }
+        ignoreFile.checkedMillis = now;
+        return ignoreFile;
+    }
+
+    /**
+     * @return the patterns in the file, or none if it isn't there or can't be read.
+     */
+    private static IgnoreFile read(File folder, File file, long lastModified) {
+        String folderPath = toPath(folder) + "/";
+        if (!file.isFile()) return new IgnoreFile(folderPath, lastModified, null, null);
+
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            LOG.warning(String.format("Could not read %s, so nothing in it is ignored: %s", file, e.getMessage()));
+            return new IgnoreFile(folderPath, lastModified, null, null);
+        }
+        List<String> includes = new ArrayList<String>();
+        List<String> excludes = new ArrayList<String>();
+        for (String line : lines) {
+            String pattern = line.trim();
+            if (pattern.isEmpty() || pattern.startsWith("#")) continue;
+            if (pattern.startsWith("!")) {
+                if (pattern.length() > 1) excludes.add(toExpression(pattern.substring(1), true));
+            } else {
+                includes.add(toExpression(pattern, true));
+            }
+        }
+        return new IgnoreFile(folderPath, lastModified, includes.isEmpty() ? null : compile(join(includes)),
+                excludes.isEmpty() ? null : compile(join(excludes)));
+    }
+
+    /**
+     * Turns a glob into a regular expression matching the paths it ignores, including everything under a matched
+     * folder.
+     *
+     * @param relative true if a pattern with a leading slash is tied to the start of the path.
+     */
+    private static String toExpression(String pattern, boolean relative) {
+        String glob = pattern.replace('\\', '/');
+        boolean anchored = relative && glob.startsWith("/");
+        while (glob.startsWith("/")) glob = glob.substring(1);
+        while (glob.endsWith("/")) glob = glob.substring(0, glob.length() - 1);
+
+        StringBuilder expression = new StringBuilder(anchored ? "" : "(?:.*/)?");
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                expression.append(".*");
+                i++;
+            } else if (c == '*') {
+                expression.append("[^/]*");
+            } else if (c == '?') {
+                expression.append("[^/]");
+            } else {
+                expression.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return expression.append("(?:/.*)?").toString();
+    }
+
+    private static String join(List<String> expressions) {
+        StringBuilder joined = new StringBuilder();
+        for (String expression : expressions) {
+            if (joined.length() > 0) joined.append('|');
+            joined.append("(?:").append(expression).append(')');
+        }
+        return joined.toString();
+    }
+
+    private static Pattern compile(String expression) {
+        return Pattern.compile(expression, CASE_INSENSITIVE_PATHS ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0);
+    }
+
+    private static File normalise(File file) {
+        return file.getAbsoluteFile().toPath().normalize().toFile();
+    }
+
+    private static String toPath(File file) {
+        return file.getPath().replace(File.separatorChar, '/');
+    }
+
+    private static class IgnoreFile {
+        private final String folderPath;
+        private final long lastModified;
+        private final Pattern includes;
+        private final Pattern excludes;
+        private volatile long checkedMillis;
+
+        private IgnoreFile(String folderPath, long lastModified, Pattern includes, Pattern excludes) {
+            this.folderPath = folderPath;
+            this.lastModified = lastModified;
+            this.includes = includes;
+            this.excludes = excludes;
+        }
+    }
+}
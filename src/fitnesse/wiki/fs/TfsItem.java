@@ -0,0 +1,40 @@
+package fitnesse.wiki.fs;
+
+/**
+ * A file or folder on the server as it is at one changeset.
+ */
+public class TfsItem {
+    private final String serverItem;
+    private final int changesetId;
+    private final byte[] contentHash;
+    private final boolean folder;
+
+    /**
+     * @param contentHash the MD5 hash of a file's content, or null if the server doesn't have one.
+     */
+    public TfsItem(String serverItem, int changesetId, byte[] contentHash, boolean folder) {
+        this.serverItem = serverItem;
+        this.changesetId = changesetId;
+        this.contentHash = contentHash;
+        this.folder = folder;
+    }
+
+    public String getServerItem() {
+        return serverItem;
+    }
+
+    /**
+     * @return the changeset the item was last changed in.
+     */
+    public int getChangesetId() {
+        return changesetId;
+    }
+
+    public byte[] getContentHash() {
+        return contentHash;
+    }
+
+    public boolean isFolder() {
+        return folder;
+    }
+}
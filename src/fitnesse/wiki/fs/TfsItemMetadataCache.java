@@ -0,0 +1,257 @@
+package fitnesse.wiki.fs;
+
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.RecursionType;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Items of each mapped server folder, read with one recursive query the first time anything under the folder is
+ * looked up, so reading a suite of pages doesn't ask the server about each page.
+ * <p>
+ * Folders are kept per workspace and read with their own lock, so a lookup only waits for a folder it needs that is
+ * being read.  A folder's items are read again once they are older than the expiry time.  Paths that have been changed
+ * since are marked unknown with {@link #invalidate(String)}, or {@link #invalidateTree(String)} for a folder and
+ * everything under it, until the next lookup of them is {@link #put(String, TfsItem)} back.  Marks made while a folder
+ * is still being read are kept when the read finishes, so a change never means reading the whole folder again.
+ */
+public class TfsItemMetadataCache {
+    private final long expiryMillis;
+    private final TfsClientPool readClients;
+    private final TfsMetrics metrics;
+    private final ConcurrentMap<String, TreeItems> treesByKey = new ConcurrentHashMap<String, TreeItems>();
+
+    /**
+     * @param readClients the connections folders are read over, so reads for different wiki requests run in parallel.
+     */
+    public TfsItemMetadataCache(long expiryMillis, TfsClientPool readClients, TfsMetrics metrics) {
+        this.expiryMillis = expiryMillis;
+        this.readClients = readClients;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the items known for each of the server paths in the workspace.  A path mapped to null is known not to be
+     * on the server, and a path that isn't in the map has to be asked for.
+     */
+    public Map<String, TfsItem> lookup(TfsWorkspace workspace, List<String> serverPaths) {
+        if (expiryMillis <= 0) return Collections.emptyMap();
+
+        Map<String, TfsItem> knownItems = new HashMap<String, TfsItem>();
+        for (String serverPath : serverPaths) {
+            String key = toKey(serverPath);
+            String mappedServerFolder = getMappedServerFolder(workspace, key);
+            if (mappedServerFolder == null) continue;
+
+            TreeItems treeItems = getTreeItems(workspace, mappedServerFolder);
+            synchronized (treeItems) {
+                if (treeItems.isKnown(key)) knownItems.put(serverPath, treeItems.items.get(key));
+            }
+        }
+        return knownItems;
+    }
+
+    /**
+     * Records the item found for a path that had to be asked for, or null if it isn't on the server.
+     */
+    public void put(String serverPath, TfsItem item) {
+        String key = toKey(serverPath);
+        for (TreeItems treeItems : treesByKey.values()) {
+            if (treeItems.contains(key)) treeItems.put(key, item);
+        }
+    }
+
+    /**
+     * Marks a path as changed so the next lookup asks the server for it.
+     */
+    public void invalidate(String serverPath) {
+        String key = toKey(serverPath);
+        for (TreeItems treeItems : treesByKey.values()) {
+            if (treeItems.contains(key)) treeItems.invalidate(key);
+        }
+    }
+
+    /**
+     * Marks a folder and everything under it as changed, such as after it was renamed or added, so the next lookup of
+     * each path under it asks the server.
+     */
+    public void invalidateTree(String serverPath) {
+        String key = toKey(serverPath);
+        for (TreeItems treeItems : treesByKey.values()) {
+            if (treeItems.contains(key) || isUnder(treeItems.serverFolder, key)) treeItems.invalidateTree(key);
+        }
+    }
+
+    public void invalidateAll() {
+        treesByKey.clear();
+    }
+
+    private TreeItems getTreeItems(TfsWorkspace workspace, String serverFolder) {
+        String treeKey = toKey(workspace.getName()) + ";" + toKey(workspace.getOwnerName()) + ";" + serverFolder;
+        while (true) {
+            TreeItems treeItems = treesByKey.get(treeKey);
+            if (treeItems != null && (!treeItems.read.isDone() || treeItems.isReadAndFresh())) {
+                return waitFor(treeKey, treeItems);
+            }
+
+            final TreeItems newTreeItems = new TreeItems(serverFolder, System.currentTimeMillis() + expiryMillis);
+            newTreeItems.read = new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    newTreeItems.load(readItems(newTreeItems.serverFolder));
+                    return null;
+                }
+            });
+            boolean replaced = treeItems == null ? treesByKey.putIfAbsent(treeKey, newTreeItems) == null : treesByKey.replace(treeKey, treeItems, newTreeItems);
+            if (!replaced) continue;
+
+            newTreeItems.read.run();
+            return waitFor(treeKey, newTreeItems);
+        }
+    }
+
+    private TreeItems waitFor(String treeKey, TreeItems treeItems) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    treeItems.read.get();
+                    return treeItems;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    treesByKey.remove(treeKey, treeItems);
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new RuntimeException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private TfsItem[] readItems(String serverFolder) {
+        TfsVersionControl client = readClients.acquire();
+        long started = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            TfsItem[][] itemSets = client.getItems(new String[]{serverFolder}, RecursionType.FULL, true);
+            succeeded = true;
+            return itemSets[0];
+        } finally {
+            metrics.record(TfsMetrics.Operation.ITEM_QUERY, started, succeeded);
+            readClients.release(client);
+        }
+    }
+
+    /**
+     * @return the closest mapped server folder of the workspace that contains the path, or null if there isn't one.
+     */
+    private static String getMappedServerFolder(TfsWorkspace workspace, String key) {
+        String mappedServerFolder = null;
+        for (TfsWorkingFolder folder : workspace.getFolders()) {
+            if (folder.isCloaked() || folder.getServerItem() == null) continue;
+            String serverFolder = toKey(folder.getServerItem());
+            if (isUnder(key, serverFolder) && (mappedServerFolder == null || serverFolder.length() > mappedServerFolder.length())) {
+                mappedServerFolder = serverFolder;
+            }
+        }
+        return mappedServerFolder;
+    }
+
+    private static boolean isUnder(String key, String serverFolder) {
+        return key.equals(serverFolder) || key.startsWith(serverFolder.endsWith("/") ? serverFolder : serverFolder + "/");
+    }
+
+    private static String toKey(String serverPath) {
+        return serverPath.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * The items of a mapped folder and everything under it, with the paths changed since they were read.
+     */
+    private static class TreeItems {
+        private final String serverFolder;
+        private final long expiresMillis;
+        private final Map<String, TfsItem> items = new HashMap<String, TfsItem>();
+        private final Set<String> unknownPaths = new HashSet<String>();
+        private final Set<String> unknownFolders = new HashSet<String>();
+        private final Set<String> putPaths = new HashSet<String>();
+        private FutureTask<Void> read;
+
+        private TreeItems(String serverFolder, long expiresMillis) {
+            this.serverFolder = serverFolder;
+            this.expiresMillis = expiresMillis;
+        }
+
+        private boolean contains(String key) {
+            return isUnder(key, serverFolder);
+        }
+
+        private boolean isReadAndFresh() {
+            try {
+                read.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                return false;
+            }
+            return expiresMillis > System.currentTimeMillis();
+        }
+
+        /**
+         * Adds the items read, except for paths put since the read started, which are newer.
+         */
+        private synchronized void load(TfsItem[] readItems) {
+            for (TfsItem item : readItems) {
+                String key = toKey(item.getServerItem());
+                if (!putPaths.contains(key)) items.put(key, item);
+            }
+        }
+
+        private synchronized boolean isKnown(String key) {
+            if (unknownPaths.contains(key)) return false;
+            if (putPaths.contains(key)) return true;
+            for (String unknownFolder : unknownFolders) {
+                if (isUnder(key, unknownFolder)) return false;
+            }
+            return true;
+        }
+
+        private synchronized void put(String key, TfsItem item) {
+            if (item == null) {
+                items.remove(key);
+            } else {
+                items.put(key, item);
+            }
+            unknownPaths.remove(key);
+            putPaths.add(key);
+        }
+
+        private synchronized void invalidate(String key) {
+            unknownPaths.add(key);
+            putPaths.remove(key);
+        }
+
+        private synchronized void invalidateTree(String key) {
+            unknownFolders.add(key);
+            for (Iterator<String> paths = putPaths.iterator(); paths.hasNext(); ) {
+                if (isUnder(paths.next(), key)) paths.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package fitnesse.wiki.fs;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counts and timings of each kind of call made to TFS, kept in fixed arrays of counters so recording a call takes no
+ * locks and allocates nothing.
+ * <p>
+ * Each operation has a histogram of power-of-two microsecond buckets, which percentiles are read from to within a
+ * factor of two.  Non-fatal errors the TFS clients raise are counted alongside, with those raised outside any
+ * operation counted separately since nothing else reports them, along with how far a bulk sync has got.  The shared
+ * instance is registered with JMX as {@value #OBJECT_NAME} and shown by
+ * {@link TfsMetricsResponder}.
+ */
+public class TfsMetrics implements TfsMetricsMXBean {
+    public static final String OBJECT_NAME = "fitnesse.wiki.fs:type=TfsMetrics";
+
+    private static final Logger LOG = Logger.getLogger(TfsMetrics.class.getName());
+    private static final int BUCKETS = 40;
+    private static final TfsMetrics SHARED = register(new TfsMetrics());
+
+    public enum Operation {
+        WORKSPACE_LOOKUP,
+        WORKSPACE_INFO_REFRESH,
+        ITEM_QUERY,
+        DOWNLOAD,
+        PEND,
+        CHECKIN,
+        HISTORY_QUERY,
+        CHANGESET_POLL
+    }
+
+    private static final int COUNT = 0;
+    private static final int FAILURES = 1;
+    private static final int TOTAL_NANOS = 2;
+    private static final int MAX_NANOS = 3;
+    private static final int FIRST_BUCKET = 4;
+    private static final int SLOTS = FIRST_BUCKET + BUCKETS;
+
+    private final AtomicLongArray counters = new AtomicLongArray(Operation.values().length * SLOTS);
+    private final AtomicLong nonFatalErrors = new AtomicLong();
+    private final AtomicLong unattributedNonFatalErrors = new AtomicLong();
+    private final AtomicLong bulkSyncChangesFound = new AtomicLong();
+    private final AtomicLong bulkSyncChangesSent = new AtomicLong();
+
+    /**
+     * @return the instance every {@link TfsWrapper} in this JVM records to.
+     */
+    public static TfsMetrics shared() {
+        return SHARED;
+    }
+
+    /**
+     * Records a call that started at the given {@link System#nanoTime()}.
+     *
+     * @param succeeded false if the call threw.
+     */
+    public void record(Operation operation, long startedNanos, boolean succeeded) {
+        recordElapsed(operation, System.nanoTime() - startedNanos, succeeded);
+    }
+
+    void recordElapsed(Operation operation, long nanos, boolean succeeded) {
+        int offset = operation.ordinal() * SLOTS;
+        counters.incrementAndGet(offset + COUNT);
+        if (!succeeded) counters.incrementAndGet(offset + FAILURES);
+        counters.addAndGet(offset + TOTAL_NANOS, nanos);
+        long max;
+        do {
+            max = counters.get(offset + MAX_NANOS);
+        } while (nanos > max && !counters.compareAndSet(offset + MAX_NANOS, max, nanos));
+        counters.incrementAndGet(offset + FIRST_BUCKET + bucket(nanos));
+    }
+
+    /**
+     * @param attributed false if the error was raised outside any operation, so no caller will report it.
+     */
+    public void recordNonFatalError(boolean attributed) {
+        nonFatalErrors.incrementAndGet();
+        if (!attributed) unattributedNonFatalErrors.incrementAndGet();
+    }
+
+    /**
+     * Records how far the running bulk sync has got.  Unlike the counts, this isn't cleared by {@link #reset()}.
+     */
+    public void recordBulkSyncProgress(long changesFound, long changesSent) {
+        bulkSyncChangesFound.set(changesFound);
+        bulkSyncChangesSent.set(changesSent);
+    }
+
+    public long getCount(Operation operation) {
+        return counters.get(operation.ordinal() * SLOTS + COUNT);
+    }
+
+    public long getFailures(Operation operation) {
+        return counters.get(operation.ordinal() * SLOTS + FAILURES);
+    }
+
+    public double getMeanMillis(Operation operation) {
+        long count = getCount(operation);
+        return count == 0 ? 0 : toMillis(counters.get(operation.ordinal() * SLOTS + TOTAL_NANOS)) / count;
+    }
+
+    public double getMaxMillis(Operation operation) {
+        return toMillis(counters.get(operation.ordinal() * SLOTS + MAX_NANOS));
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the upper bound of the histogram bucket the percentile falls in, capped at the slowest call, or 0 if
+     * nothing has been recorded.
+     */
+    public double getPercentileMillis(Operation operation, double percentile) {
+        int offset = operation.ordinal() * SLOTS + FIRST_BUCKET;
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counters.get(offset + i);
+        }
+        if (total == 0) return 0;
+
+        long wanted = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counters.get(offset + i);
+            if (seen >= wanted) return Math.min((1L << i) / 1000.0, getMaxMillis(operation));
+        }
+        return getMaxMillis(operation);
+    }
+
+    @Override
+    public TfsOperationStatistics[] getOperations() {
+        Operation[] operations = Operation.values();
+        TfsOperationStatistics[] statistics = new TfsOperationStatistics[operations.length];
+        for (int i = 0; i < operations.length; i++) {
+            Operation operation = operations[i];
+            statistics[i] = new TfsOperationStatistics(operation.name(), getCount(operation), getFailures(operation),
+                    getMeanMillis(operation), getPercentileMillis(operation, 50), getPercentileMillis(operation, 95),
+                    getPercentileMillis(operation, 99), getMaxMillis(operation));
+        }
+        return statistics;
+    }
+
+    @Override
+    public long getNonFatalErrorCount() {
+        return nonFatalErrors.get();
+    }
+
+    @Override
+    public long getUnattributedNonFatalErrorCount() {
+        return unattributedNonFatalErrors.get();
+    }
+
+    @Override
+    public long getBulkSyncChangesFound() {
+        return bulkSyncChangesFound.get();
+    }
+
+    @Override
+    public long getBulkSyncChangesSent() {
+        return bulkSyncChangesSent.get();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        nonFatalErrors.set(0);
+        unattributedNonFatalErrors.set(0);
+    }
+
+    /**
+     * @return the bucket holding calls of under 2^bucket microseconds.
+     */
+    private static int bucket(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    private static TfsMetrics register(TfsMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) server.registerMBean(metrics, name);
+        } catch (JMException e) {
+            LOG.log(Level.WARNING, "Could not register the TFS metrics with JMX", e);
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,27 @@
+package fitnesse.wiki.fs;
+
+/**
+ * The TFS call timings, non-fatal error counts and bulk sync progress shown through JMX.
+ */
+public interface TfsMetricsMXBean {
+    TfsOperationStatistics[] getOperations();
+
+    long getNonFatalErrorCount();
+
+    /**
+     * @return how many non-fatal errors were raised outside any operation, such as on the client's own threads.
+     */
+    long getUnattributedNonFatalErrorCount();
+
+    /**
+     * @return how many files the last bulk sync found to save or delete.
+     */
+    long getBulkSyncChangesFound();
+
+    /**
+     * @return how many of the changes the last bulk sync found have been checked in so far.
+     */
+    long getBulkSyncChangesSent();
+
+    void reset();
+}
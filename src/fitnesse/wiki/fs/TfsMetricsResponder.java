@@ -0,0 +1,42 @@
+package fitnesse.wiki.fs;
+
+import fitnesse.FitNesseContext;
+import fitnesse.Responder;
+import fitnesse.http.Request;
+import fitnesse.http.Response;
+import fitnesse.http.SimpleResponse;
+
+/**
+ * Shows the TFS call timings as a plain text table, followed by the count of non-fatal errors and how far a bulk sync
+ * has got.  Add it to {@code plugins.properties} with
+ * {@code Responders=tfsMetrics:fitnesse.wiki.fs.TfsMetricsResponder} and open {@code http://host:port/?tfsMetrics};
+ * add {@code &reset} to clear the counts after showing them.
+ */
+public class TfsMetricsResponder implements Responder {
+    @Override
+    public Response makeResponse(FitNesseContext context, Request request) {
+        TfsMetrics metrics = TfsMetrics.shared();
+        StringBuilder content = new StringBuilder();
+        content.append(String.format("%-24s %10s %10s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "failures", "mean ms", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+        for (TfsOperationStatistics statistics : metrics.getOperations()) {
+            content.append(String.format("%-24s %10d %10d %10.2f %10.2f %10.2f %10.2f %10.2f%n",
+                    statistics.getOperation(), statistics.getCount(), statistics.getFailures(), statistics.getMeanMillis(),
+                    statistics.getMedianMillis(), statistics.getPercentile95Millis(), statistics.getPercentile99Millis(),
+                    statistics.getMaxMillis()));
+        }
+        content.append(String.format("%nnon-fatal errors: %d (%d outside any operation)%n",
+                metrics.getNonFatalErrorCount(), metrics.getUnattributedNonFatalErrorCount()));
+        if (metrics.getBulkSyncChangesFound() > 0) {
+            content.append(String.format("bulk sync: %d of %d changes checked in%n",
+                    metrics.getBulkSyncChangesSent(), metrics.getBulkSyncChangesFound()));
+        }
+        if (request.hasInput("reset")) metrics.reset();
+
+        SimpleResponse response = new SimpleResponse();
+        response.setContentType("text/plain; charset=utf-8");
+        response.setMaxAge(0);
+        response.setContent(content.toString());
+        return response;
+    }
+}
@@ -0,0 +1,56 @@
+package fitnesse.wiki.fs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where the non-fatal errors of every version control client are sent.  TFS raises these events on the thread making
+ * the call, so errors are collected for the operation running on that thread between {@link #begin()} and
+ * {@link #end()}.  Every error is also counted in {@link TfsMetrics}.
+ */
+public class TfsNonFatalErrorRouter {
+    private final ThreadLocal<List<String>> operationErrors = new ThreadLocal<List<String>>();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong unattributedErrorCount = new AtomicLong();
+    private final TfsMetrics metrics;
+
+    public TfsNonFatalErrorRouter(TfsMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void begin() {
+        operationErrors.set(new ArrayList<String>());
+    }
+
+    /**
+     * @return the errors raised on this thread since {@link #begin()}.
+     */
+    public List<String> end() {
+        List<String> errors = operationErrors.get();
+        operationErrors.remove();
+        return errors == null ? new ArrayList<String>() : errors;
+    }
+
+    public void onNonFatalError(String message) {
+        errorCount.incrementAndGet();
+        List<String> errors = operationErrors.get();
+        if (errors == null) {
+            unattributedErrorCount.incrementAndGet();
+        } else {
+            errors.add(message);
+        }
+        metrics.recordNonFatalError(errors != null);
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * @return how many errors were raised outside any operation, such as on the client's own threads.
+     */
+    public long getUnattributedErrorCount() {
+        return unattributedErrorCount.get();
+    }
+}
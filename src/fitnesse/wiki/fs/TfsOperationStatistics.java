@@ -0,0 +1,62 @@
+package fitnesse.wiki.fs;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A snapshot of the timings of one kind of TFS call.  Percentiles are accurate to within a factor of two.
+ */
+public class TfsOperationStatistics {
+    private final String operation;
+    private final long count;
+    private final long failures;
+    private final double meanMillis;
+    private final double medianMillis;
+    private final double percentile95Millis;
+    private final double percentile99Millis;
+    private final double maxMillis;
+
+    @ConstructorProperties({"operation", "count", "failures", "meanMillis", "medianMillis", "percentile95Millis", "percentile99Millis", "maxMillis"})
+    public TfsOperationStatistics(String operation, long count, long failures, double meanMillis, double medianMillis,
+                                  double percentile95Millis, double percentile99Millis, double maxMillis) {
+        this.operation = operation;
+        this.count = count;
+        this.failures = failures;
+        this.meanMillis = meanMillis;
+        this.medianMillis = medianMillis;
+        this.percentile95Millis = percentile95Millis;
+        this.percentile99Millis = percentile99Millis;
+        this.maxMillis = maxMillis;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    public double getMeanMillis() {
+        return meanMillis;
+    }
+
+    public double getMedianMillis() {
+        return medianMillis;
+    }
+
+    public double getPercentile95Millis() {
+        return percentile95Millis;
+    }
+
+    public double getPercentile99Millis() {
+        return percentile99Millis;
+    }
+
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+}
@@ -0,0 +1,19 @@
+package fitnesse.wiki.fs;
+
+/**
+ * A change pended in a workspace and not checked in yet.
+ */
+public class TfsPendingChange {
+    private final String serverItem;
+
+    public TfsPendingChange(String serverItem) {
+        this.serverItem = serverItem;
+    }
+
+    /**
+     * @return the server path the item will have once the change is checked in.
+     */
+    public String getServerItem() {
+        return serverItem;
+    }
+}
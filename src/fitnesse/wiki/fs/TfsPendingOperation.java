@@ -0,0 +1,61 @@
+package fitnesse.wiki.fs;
+
+import java.io.File;
+
+/**
+ * A save or delete of a local file that still has to be sent to TFS.
+ */
+public class TfsPendingOperation {
+    public enum Type {SAVE, DELETE}
+
+    private final Type type;
+    private final File file;
+    private final long queuedMillis;
+    private final long firstQueuedMillis;
+    private final int saveCount;
+
+    public TfsPendingOperation(Type type, File file, long queuedMillis) {
+        this(type, file, queuedMillis, queuedMillis, type == Type.SAVE ? 1 : 0);
+    }
+
+    /**
+     * @param firstQueuedMillis when the first of the operations on the file that this one replaces was queued.
+     * @param saveCount how many saves of the file this operation holds.
+     */
+    public TfsPendingOperation(Type type, File file, long queuedMillis, long firstQueuedMillis, int saveCount) {
+        this.type = type;
+        this.file = file.getAbsoluteFile();
+        this.queuedMillis = queuedMillis;
+        this.firstQueuedMillis = firstQueuedMillis;
+        this.saveCount = saveCount;
+    }
+
+    /**
+     * @return this operation replacing an earlier one on the same file, keeping when the first was queued and how many
+     * saves have been merged.
+     */
+    public TfsPendingOperation coalesce(TfsPendingOperation earlier) {
+        if (earlier == null) return this;
+        return new TfsPendingOperation(type, file, queuedMillis, earlier.firstQueuedMillis, earlier.saveCount + saveCount);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getQueuedMillis() {
+        return queuedMillis;
+    }
+
+    public long getFirstQueuedMillis() {
+        return firstQueuedMillis;
+    }
+
+    public int getSaveCount() {
+        return saveCount;
+    }
+}
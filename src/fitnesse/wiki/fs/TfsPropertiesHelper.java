@@ -1,11 +1,49 @@
 package fitnesse.wiki.fs;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 public class TfsPropertiesHelper {
     public static final String NATIVE_FOLDER_PROPERTY_KEY = "TfsVersionsController.NativeLibFolder";
     public static final String TFS_SERVER_PROPERTY_KEY = "TfsVersionsController.TfsServerUri";
+    public static final String WORKSPACE_REFRESH_PROPERTY_KEY = "TfsVersionsController.WorkspaceRefreshSeconds";
+    public static final int DEFAULT_WORKSPACE_REFRESH_SECONDS = 300;
+    public static final String WORKSPACE_INFO_REFRESH_PROPERTY_KEY = "TfsVersionsController.WorkspaceInfoRefreshSeconds";
+    public static final int DEFAULT_WORKSPACE_INFO_REFRESH_SECONDS = 300;
+    public static final String REVISION_CACHE_BYTES_PROPERTY_KEY = "TfsVersionsController.RevisionCacheBytes";
+    public static final long DEFAULT_REVISION_CACHE_BYTES = 32L * 1024 * 1024;
+    public static final String REVISION_CACHE_SPILL_FOLDER_PROPERTY_KEY = "TfsVersionsController.RevisionCacheSpillFolder";
+    public static final String REVISION_CACHE_SPILL_BYTES_PROPERTY_KEY = "TfsVersionsController.RevisionCacheSpillBytes";
+    public static final long DEFAULT_REVISION_CACHE_SPILL_BYTES = 256L * 1024 * 1024;
+    public static final String WRITE_BEHIND_PROPERTY_KEY = "TfsVersionsController.WriteBehind";
+    public static final String WRITE_BEHIND_JOURNAL_PROPERTY_KEY = "TfsVersionsController.WriteBehindJournal";
+    public static final String DEFAULT_WRITE_BEHIND_JOURNAL = "tfs-write-behind.journal";
+    public static final String COALESCE_WINDOW_PROPERTY_KEY = "TfsVersionsController.CoalesceWindowSeconds";
+    public static final String COALESCE_LONGEST_HOLD_PROPERTY_KEY = "TfsVersionsController.CoalesceLongestHoldSeconds";
+    public static final int DEFAULT_COALESCE_LONGEST_HOLD_SECONDS = 300;
+    public static final String DOWNLOAD_THREADS_PROPERTY_KEY = "TfsVersionsController.DownloadThreads";
+    public static final int DEFAULT_DOWNLOAD_THREADS = 8;
+    public static final String READ_CONNECTIONS_PROPERTY_KEY = "TfsVersionsController.ReadConnections";
+    public static final int DEFAULT_READ_CONNECTIONS = 4;
+    public static final String DOWNLOAD_FOLDER_PROPERTY_KEY = "TfsVersionsController.DownloadFolder";
+    public static final String DOWNLOAD_FOLDER_BYTES_PROPERTY_KEY = "TfsVersionsController.DownloadFolderBytes";
+    public static final long DEFAULT_DOWNLOAD_FOLDER_BYTES = 256L * 1024 * 1024;
+    public static final String ITEM_METADATA_PROPERTY_KEY = "TfsVersionsController.ItemMetadataSeconds";
+    public static final int DEFAULT_ITEM_METADATA_SECONDS = 60;
+    public static final String CHANGESET_POLL_PROPERTY_KEY = "TfsVersionsController.ChangesetPollSeconds";
+    public static final String GET_LATEST_ON_CHANGE_PROPERTY_KEY = "TfsVersionsController.GetLatestOnChange";
+    public static final String BULK_SYNC_FOLDER_PROPERTY_KEY = "TfsVersionsController.BulkSyncFolder";
+    public static final String BULK_SYNC_BATCH_SIZE_PROPERTY_KEY = "TfsVersionsController.BulkSyncBatchSize";
+    public static final int DEFAULT_BULK_SYNC_BATCH_SIZE = 500;
+    public static final String BULK_SYNC_MARKER_PROPERTY_KEY = "TfsVersionsController.BulkSyncMarker";
+    public static final String DEFAULT_BULK_SYNC_MARKER = "tfs-bulk-sync.done";
+    public static final String IGNORE_PATTERNS_PROPERTY_KEY = "TfsVersionsController.IgnorePatterns";
+    public static final String DEFAULT_IGNORE_PATTERNS = "ErrorLogs, files/testResults, *.zip";
+    public static final String HISTORY_INDEX_FOLDER_PROPERTY_KEY = "TfsVersionsController.HistoryIndexFolder";
+    public static final String DEFAULT_HISTORY_INDEX_FOLDER = "tfs-history-index";
+    public static final String HISTORY_DEPTH_PROPERTY_KEY = "TfsVersionsController.HistoryDepth";
 
     public static String getNativeTfsFolder(Properties properties) {
         final String nativeTfsFolder = properties.getProperty(NATIVE_FOLDER_PROPERTY_KEY);
@@ -27,4 +65,138 @@ public class TfsPropertiesHelper {
             throw new TfsFileVersionControllerException("plugins.properties MUST have the TfsVersionsController.TfsServerUri property set.");
         return tfsServerUri;
     }
+
+    public static int getWorkspaceRefreshSeconds(Properties properties) {
+        return getIntegerProperty(properties, WORKSPACE_REFRESH_PROPERTY_KEY, DEFAULT_WORKSPACE_REFRESH_SECONDS);
+    }
+
+    public static int getWorkspaceInfoRefreshSeconds(Properties properties) {
+        return getIntegerProperty(properties, WORKSPACE_INFO_REFRESH_PROPERTY_KEY, DEFAULT_WORKSPACE_INFO_REFRESH_SECONDS);
+    }
+
+    public static long getRevisionCacheBytes(Properties properties) {
+        return getLongProperty(properties, REVISION_CACHE_BYTES_PROPERTY_KEY, DEFAULT_REVISION_CACHE_BYTES);
+    }
+
+    public static File getRevisionCacheSpillFolder(Properties properties) {
+        final String spillFolder = properties.getProperty(REVISION_CACHE_SPILL_FOLDER_PROPERTY_KEY);
+        return spillFolder == null || spillFolder.trim().isEmpty() ? null : new File(spillFolder.trim());
+    }
+
+    public static long getRevisionCacheSpillBytes(Properties properties) {
+        return getLongProperty(properties, REVISION_CACHE_SPILL_BYTES_PROPERTY_KEY, DEFAULT_REVISION_CACHE_SPILL_BYTES);
+    }
+
+    public static boolean isWriteBehind(Properties properties) {
+        return getBooleanProperty(properties, WRITE_BEHIND_PROPERTY_KEY, false);
+    }
+
+    public static File getWriteBehindJournal(Properties properties) {
+        final String journal = properties.getProperty(WRITE_BEHIND_JOURNAL_PROPERTY_KEY);
+        return new File(journal == null || journal.trim().isEmpty() ? DEFAULT_WRITE_BEHIND_JOURNAL : journal.trim());
+    }
+
+    public static int getCoalesceWindowSeconds(Properties properties) {
+        return getIntegerProperty(properties, COALESCE_WINDOW_PROPERTY_KEY, 0);
+    }
+
+    public static int getCoalesceLongestHoldSeconds(Properties properties) {
+        return getIntegerProperty(properties, COALESCE_LONGEST_HOLD_PROPERTY_KEY, DEFAULT_COALESCE_LONGEST_HOLD_SECONDS);
+    }
+
+    public static int getDownloadThreads(Properties properties) {
+        return Math.max(1, getIntegerProperty(properties, DOWNLOAD_THREADS_PROPERTY_KEY, DEFAULT_DOWNLOAD_THREADS));
+    }
+
+    public static int getReadConnections(Properties properties) {
+        return Math.max(1, getIntegerProperty(properties, READ_CONNECTIONS_PROPERTY_KEY, DEFAULT_READ_CONNECTIONS));
+    }
+
+    public static File getDownloadFolder(Properties properties) {
+        final String folder = properties.getProperty(DOWNLOAD_FOLDER_PROPERTY_KEY);
+        if (folder == null || folder.trim().isEmpty())
+            return new File(System.getProperty("java.io.tmpdir"), "fitnesse-tfs-downloads");
+        return new File(folder.trim());
+    }
+
+    public static long getDownloadFolderBytes(Properties properties) {
+        return getLongProperty(properties, DOWNLOAD_FOLDER_BYTES_PROPERTY_KEY, DEFAULT_DOWNLOAD_FOLDER_BYTES);
+    }
+
+    public static int getItemMetadataSeconds(Properties properties) {
+        return getIntegerProperty(properties, ITEM_METADATA_PROPERTY_KEY, DEFAULT_ITEM_METADATA_SECONDS);
+    }
+
+    public static int getChangesetPollSeconds(Properties properties) {
+        return getIntegerProperty(properties, CHANGESET_POLL_PROPERTY_KEY, 0);
+    }
+
+    public static boolean isGetLatestOnChange(Properties properties) {
+        return getBooleanProperty(properties, GET_LATEST_ON_CHANGE_PROPERTY_KEY, false);
+    }
+
+    public static File getBulkSyncFolder(Properties properties) {
+        final String folder = properties.getProperty(BULK_SYNC_FOLDER_PROPERTY_KEY);
+        return folder == null || folder.trim().isEmpty() ? null : new File(folder.trim());
+    }
+
+    public static int getBulkSyncBatchSize(Properties properties) {
+        return Math.max(1, getIntegerProperty(properties, BULK_SYNC_BATCH_SIZE_PROPERTY_KEY, DEFAULT_BULK_SYNC_BATCH_SIZE));
+    }
+
+    public static File getBulkSyncMarker(Properties properties) {
+        final String marker = properties.getProperty(BULK_SYNC_MARKER_PROPERTY_KEY);
+        return new File(marker == null || marker.trim().isEmpty() ? DEFAULT_BULK_SYNC_MARKER : marker.trim());
+    }
+
+    public static List<String> getIgnorePatterns(Properties properties) {
+        final String patterns = properties.getProperty(IGNORE_PATTERNS_PROPERTY_KEY, DEFAULT_IGNORE_PATTERNS);
+        List<String> ignorePatterns = new ArrayList<String>();
+        for (String pattern : patterns.split(",")) {
+            if (!pattern.trim().isEmpty()) ignorePatterns.add(pattern.trim());
+        }
+        return ignorePatterns;
+    }
+
+    public static File getHistoryIndexFolder(Properties properties) {
+        final String folder = properties.getProperty(HISTORY_INDEX_FOLDER_PROPERTY_KEY);
+        return new File(folder == null || folder.trim().isEmpty() ? DEFAULT_HISTORY_INDEX_FOLDER : folder.trim());
+    }
+
+    public static int getHistoryDepth(Properties properties) {
+        return getIntegerProperty(properties, HISTORY_DEPTH_PROPERTY_KEY, 0);
+    }
+
+    private static boolean getBooleanProperty(Properties properties, String key, boolean defaultValue) {
+        final String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty())
+            return defaultValue;
+        if (value.trim().equalsIgnoreCase("true"))
+            return true;
+        if (value.trim().equalsIgnoreCase("false"))
+            return false;
+        throw new TfsFileVersionControllerException(String.format("plugins.properties property %s must be true or false, but was '%s'.", key, value));
+    }
+
+    private static int getIntegerProperty(Properties properties, String key, int defaultValue) {
+        final String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty())
+            return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new TfsFileVersionControllerException(String.format("plugins.properties property %s must be a whole number, but was '%s'.", key, value));
+        }
+    }
+
+    private static long getLongProperty(Properties properties, String key, long defaultValue) {
+        final String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty())
+            return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new TfsFileVersionControllerException(String.format("plugins.properties property %s must be a whole number, but was '%s'.", key, value));
+        }
+    }
 }
@@ -0,0 +1,256 @@
+package fitnesse.wiki.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache of file content at a given changeset.  Content checked in at a changeset never changes,
+ * so entries are only ever removed to stay inside the size limits.
+ * <p>
+ * When a spill folder is given, entries pushed out of memory are written there instead of being dropped, and files
+ * already in the folder are reused after a restart.  The spill files are read and written outside the cache's
+ * monitor, so a slow disk only holds up the lookup that touches it.
+ */
+public class TfsRevisionContentCache {
+    private final long maximumBytes;
+    private final File spillFolder;
+    private final long maximumSpillBytes;
+
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> spilledEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private final Map<String, byte[]> spilling = new HashMap<String, byte[]>();
+    private long bytes;
+    private long spilledBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong spillHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public TfsRevisionContentCache(long maximumBytes) {
+        this(maximumBytes, null, 0);
+    }
+
+    public TfsRevisionContentCache(long maximumBytes, File spillFolder, long maximumSpillBytes) {
+        this.maximumBytes = maximumBytes;
+        this.spillFolder = spillFolder;
+        this.maximumSpillBytes = maximumSpillBytes;
+        if (spillFolder != null) loadSpilledEntries();
+    }
+
+    /**
+     * @return the cached content of the server item at the changeset, or null if it isn't cached.
+     */
+    public byte[] get(String serverPath, int changesetId) {
+        String key = toKey(serverPath, changesetId);
+        String fileName;
+        synchronized (this) {
+            byte[] content = entries.get(key);
+            if (content == null) content = spilling.get(key);
+            if (content != null) {
+                hits.incrementAndGet();
+                return content;
+            }
+
+            fileName = claimSpilled(key);
+            if (fileName == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+
+        byte[] content = readSpilled(fileName);
+        if (content == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        spillHits.incrementAndGet();
+        Map<String, byte[]> evicted;
+        synchronized (this) {
+            evicted = entries.containsKey(key) ? Collections.<String, byte[]>emptyMap() : putInMemory(key, content);
+        }
+        spill(evicted);
+        return content;
+    }
+
+    public void put(String serverPath, int changesetId, byte[] content) {
+        String key = toKey(serverPath, changesetId);
+        Map<String, byte[]> evicted;
+        synchronized (this) {
+            if (entries.containsKey(key)) return;
+            evicted = putInMemory(key, content);
+        }
+        spill(evicted);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getSpillHits() {
+        return spillHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Must be called holding the monitor.
+     *
+     * @return the entries pushed out of memory to be written to the spill folder, once the monitor is released.
+     */
+    private Map<String, byte[]> putInMemory(String key, byte[] content) {
+        Map<String, byte[]> evicted = new LinkedHashMap<String, byte[]>();
+        if (content.length > maximumBytes) {
+            evict(key, content, evicted);
+            return evicted;
+        }
+
+        entries.put(key, content);
+        bytes += content.length;
+
+        Iterator<Map.Entry<String, byte[]>> eldest = entries.entrySet().iterator();
+        while (bytes > maximumBytes && eldest.hasNext()) {
+            Map.Entry<String, byte[]> entry = eldest.next();
+            eldest.remove();
+            bytes -= entry.getValue().length;
+            evict(entry.getKey(), entry.getValue(), evicted);
+        }
+        return evicted;
+    }
+
+    /**
+     * Must be called holding the monitor.  Content being spilled stays readable from {@link #spilling} until its file
+     * is written.
+     */
+    private void evict(String key, byte[] content, Map<String, byte[]> evicted) {
+        if (spillFolder == null || content.length > maximumSpillBytes) {
+            evictions.incrementAndGet();
+            return;
+        }
+        if (spilledEntries.containsKey(toFileName(key)) || spilling.containsKey(key)) return;
+
+        spilling.put(key, content);
+        evicted.put(key, content);
+    }
+
+    /**
+     * Writes the evicted entries to the spill folder without holding the monitor, so other lookups aren't held up by
+     * the disk.
+     */
+    private void spill(Map<String, byte[]> evicted) {
+        for (Map.Entry<String, byte[]> entry : evicted.entrySet()) {
+            String fileName = toFileName(entry.getKey());
+            boolean written;
+            try {
+                Files.write(new File(spillFolder, fileName).toPath(), entry.getValue());
+                written = true;
+            } catch (IOException e) {
+                written = false;
+            }
+
+            List<String> deletions = new ArrayList<String>();
+            synchronized (this) {
+                spilling.remove(entry.getKey());
+                if (!written) {
+                    evictions.incrementAndGet();
+                    continue;
+                }
+                spilledEntries.put(fileName, (long) entry.getValue().length);
+                spilledBytes += entry.getValue().length;
+
+                Iterator<Map.Entry<String, Long>> eldest = spilledEntries.entrySet().iterator();
+                while (spilledBytes > maximumSpillBytes && eldest.hasNext()) {
+                    Map.Entry<String, Long> spilled = eldest.next();
+                    eldest.remove();
+                    spilledBytes -= spilled.getValue();
+                    evictions.incrementAndGet();
+                    deletions.add(spilled.getKey());
+                }
+            }
+            for (String deletion : deletions) {
+                new File(spillFolder, deletion).delete();
+            }
+        }
+    }
+
+    /**
+     * Must be called holding the monitor.  Takes the entry out of the spill folder's index, so no other lookup reads
+     * the file while this one does.
+     *
+     * @return the name of the spilled file, or null if the content isn't spilled.
+     */
+    private String claimSpilled(String key) {
+        if (spillFolder == null) return null;
+        String fileName = toFileName(key);
+        Long size = spilledEntries.remove(fileName);
+        if (size == null) return null;
+
+        spilledBytes -= size;
+        return fileName;
+    }
+
+    private byte[] readSpilled(String fileName) {
+        File spilledFile = new File(spillFolder, fileName);
+        try {
+            return Files.readAllBytes(spilledFile.toPath());
+        } catch (IOException e) {
+            return null;
+        } finally {
+            spilledFile.delete();
+        }
+    }
+
+    private void loadSpilledEntries() {
+        if (!spillFolder.isDirectory() && !spillFolder.mkdirs())
+            throw new TfsFileVersionControllerException("Could not create the revision cache spill folder " + spillFolder.getAbsolutePath());
+
+        File[] files = spillFolder.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                return Long.compare(first.lastModified(), second.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (!file.isFile()) continue;
+            spilledEntries.put(file.getName(), file.length());
+            spilledBytes += file.length();
+        }
+    }
+
+    private static String toKey(String serverPath, int changesetId) {
+        return changesetId + ";" + serverPath.toLowerCase(Locale.ROOT);
+    }
+
+    private static String toFileName(String key) {
+        return TfsContentHashes.toHex(TfsContentHashes.md5(key.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,344 @@
+package fitnesse.wiki.fs;
+
+import com.microsoft.tfs.core.TFSTeamProjectCollection;
+import com.microsoft.tfs.core.clients.versioncontrol.GetItemsOptions;
+import com.microsoft.tfs.core.clients.versioncontrol.GetOptions;
+import com.microsoft.tfs.core.clients.versioncontrol.PendChangesOptions;
+import com.microsoft.tfs.core.clients.versioncontrol.VersionControlClient;
+import com.microsoft.tfs.core.clients.versioncontrol.Workstation;
+import com.microsoft.tfs.core.clients.versioncontrol.events.NonFatalErrorEvent;
+import com.microsoft.tfs.core.clients.versioncontrol.events.NonFatalErrorListener;
+import com.microsoft.tfs.core.clients.versioncontrol.exceptions.VersionControlException;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.Change;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.Changeset;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.DeletedState;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.GetRequest;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.Item;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.ItemSet;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.ItemType;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.LockLevel;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.PendingChange;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.PendingSet;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.RecursionType;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.WorkingFolder;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.Workspace;
+import com.microsoft.tfs.core.clients.versioncontrol.specs.ItemSpec;
+import com.microsoft.tfs.core.clients.versioncontrol.specs.version.ChangesetVersionSpec;
+import com.microsoft.tfs.core.clients.versioncontrol.specs.version.LatestVersionSpec;
+import com.microsoft.tfs.core.clients.versioncontrol.specs.version.VersionSpec;
+import com.microsoft.tfs.core.config.persistence.PersistenceStoreProvider;
+import com.microsoft.tfs.core.httpclient.DefaultNTCredentials;
+import com.microsoft.tfs.util.LocalHost;
+import fitnesse.wiki.fs.exceptions.NotEnoughWorkspaceItemSetsException;
+import fitnesse.wiki.fs.exceptions.TfsVersionControlException;
+import fitnesse.wiki.fs.exceptions.TooManyWorkspaceItemSetsException;
+import fitnesse.wiki.fs.exceptions.TooManyWorkspaceItemsException;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Makes the calls of {@link TfsVersionControl} with the TFS SDK, over its own project collection connection.
+ * <p>
+ * Errors TFS raises without failing a call are passed to the {@link TfsNonFatalErrorRouter}, and errors pending or
+ * checking in changes are thrown as {@link TfsVersionControlException}.
+ */
+public class TfsSdkVersionControl implements TfsVersionControl {
+    private static final Logger LOG = Logger.getLogger(TfsSdkVersionControl.class.getName());
+
+    private final TFSTeamProjectCollection projectCollection;
+    private final VersionControlClient versionControlClient;
+    private final PersistenceStoreProvider persistenceStoreProvider;
+
+    public TfsSdkVersionControl(String tfsServerUri, final TfsNonFatalErrorRouter nonFatalErrorRouter) {
+        try {
+            projectCollection = new TFSTeamProjectCollection(new URI(tfsServerUri), new DefaultNTCredentials());
+        } catch (URISyntaxException e) {
+            LOG.log(Level.SEVERE, "Invalid TFS project collection URI " + tfsServerUri, e);
+            throw new RuntimeException(String.format("Could not connect to TFS project collection: %s", tfsServerUri));
+        }
+        try {
+            persistenceStoreProvider = projectCollection.getPersistenceStoreProvider();
+            versionControlClient = projectCollection.getVersionControlClient();
+            versionControlClient.getEventEngine().addNonFatalErrorListener(new NonFatalErrorListener() {
+                @Override
+                public void onNonFatalError(NonFatalErrorEvent nonFatalErrorEvent) {
+                    nonFatalErrorRouter.onNonFatalError(nonFatalErrorEvent.getMessage());
+                }
+            });
+        } catch (RuntimeException e) {
+            projectCollection.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public List<TfsWorkspace> getWorkspaces() {
+        Workspace[] workspaces = versionControlClient.getRepositoryWorkspaces(null, null, null);
+        if (workspaces == null) return Collections.emptyList();
+
+        String authorizedUser = versionControlClient.getAuthorizedUser();
+        String computer = LocalHost.getShortName();
+        List<TfsWorkspace> sdkWorkspaces = new ArrayList<TfsWorkspace>(workspaces.length);
+        for (Workspace workspace : workspaces) {
+            boolean local = computer.equalsIgnoreCase(workspace.getComputer()) && workspace.ownerNameMatches(authorizedUser);
+            sdkWorkspaces.add(new SdkWorkspace(workspace, local));
+        }
+        return sdkWorkspaces;
+    }
+
+    @Override
+    public void refreshWorkspaceInfo(String owner) {
+        Workstation.getCurrent(persistenceStoreProvider).ensureUpdateWorkspaceInfoCache(versionControlClient, owner);
+    }
+
+    @Override
+    public TfsItem getItem(String serverPath, int changesetId) {
+        Item item = versionControlClient.getItem(serverPath, new ChangesetVersionSpec(changesetId));
+        return item == null ? null : new SdkItem(item);
+    }
+
+    @Override
+    public TfsItem[][] getItems(String[] serverPaths, RecursionType recursion, boolean generateDownloadUrls) {
+        ItemSpec[] itemSpecs = new ItemSpec[serverPaths.length];
+        for (int i = 0; i < serverPaths.length; i++) {
+            itemSpecs[i] = new ItemSpec(serverPaths[i], recursion);
+        }
+        ItemSet[] itemSets = versionControlClient.getItems(itemSpecs, LatestVersionSpec.INSTANCE, DeletedState.NON_DELETED,
+                ItemType.ANY, generateDownloadUrls ? GetItemsOptions.DOWNLOAD : GetItemsOptions.NONE);
+        if (itemSets == null || itemSets.length < itemSpecs.length)
+            throw new NotEnoughWorkspaceItemSetsException(Arrays.toString(serverPaths));
+        if (itemSets.length > itemSpecs.length) throw new TooManyWorkspaceItemSetsException(itemSets);
+
+        TfsItem[][] items = new TfsItem[serverPaths.length][];
+        for (int i = 0; i < itemSets.length; i++) {
+            Item[] setItems = itemSets[i].getItems();
+            if (setItems == null) setItems = new Item[0];
+            if (recursion == RecursionType.NONE && setItems.length > 1)
+                throw new TooManyWorkspaceItemsException(itemSets[i], setItems);
+            items[i] = new TfsItem[setItems.length];
+            for (int j = 0; j < setItems.length; j++) {
+                items[i][j] = new SdkItem(setItems[j]);
+            }
+        }
+        return items;
+    }
+
+    @Override
+    public void download(TfsItem item, File file) {
+        if (!(item instanceof SdkItem))
+            throw new IllegalArgumentException(item.getServerItem() + " was not found through the TFS SDK, so it can't be downloaded with it.");
+        ((SdkItem) item).item.downloadFile(versionControlClient, file.getPath());
+    }
+
+    /**
+     * Only the changeset details are asked for, not the changes in them.
+     */
+    @Override
+    public List<TfsHistoryEntry> queryHistory(String serverPath, int fromChangesetId) {
+        VersionSpec versionFrom = fromChangesetId > 1 ? new ChangesetVersionSpec(fromChangesetId) : null;
+        Changeset[] changesets = versionControlClient.queryHistory(serverPath, LatestVersionSpec.INSTANCE, 0,
+                RecursionType.NONE, null, versionFrom, LatestVersionSpec.INSTANCE, Integer.MAX_VALUE, false, false, false, false);
+
+        List<TfsHistoryEntry> history = new ArrayList<TfsHistoryEntry>();
+        if (changesets == null) return history;
+        for (Changeset changeset : changesets) {
+            history.add(new TfsHistoryEntry(changeset.getChangesetID(), changeset.getOwner(), changeset.getComment(), changeset.getDate().getTimeInMillis()));
+        }
+        return history;
+    }
+
+    @Override
+    public Set<String> queryChangedPaths(String serverFolder, int fromChangesetId, int toChangesetId) {
+        Changeset[] changesets = versionControlClient.queryHistory(serverFolder, LatestVersionSpec.INSTANCE, 0,
+                RecursionType.FULL, null, new ChangesetVersionSpec(fromChangesetId), new ChangesetVersionSpec(toChangesetId),
+                Integer.MAX_VALUE, true, false, false, false);
+
+        Set<String> changedPaths = new LinkedHashSet<String>();
+        if (changesets == null) return changedPaths;
+        for (Changeset changeset : changesets) {
+            Change[] changes = changeset.getChanges();
+            if (changes == null) continue;
+            for (Change change : changes) {
+                changedPaths.add(change.getItem().getServerItem());
+            }
+        }
+        return changedPaths;
+    }
+
+    @Override
+    public int getLatestChangesetId() {
+        return versionControlClient.getLatestChangesetID();
+    }
+
+    @Override
+    public void close() {
+        projectCollection.close();
+    }
+
+    private static class SdkWorkspace implements TfsWorkspace {
+        private final Workspace workspace;
+        private final boolean local;
+
+        private SdkWorkspace(Workspace workspace, boolean local) {
+            this.workspace = workspace;
+            this.local = local;
+        }
+
+        @Override
+        public String getName() {
+            return workspace.getName();
+        }
+
+        @Override
+        public String getOwnerName() {
+            return workspace.getOwnerName();
+        }
+
+        @Override
+        public String getComputer() {
+            return workspace.getComputer();
+        }
+
+        @Override
+        public boolean isLocal() {
+            return local;
+        }
+
+        @Override
+        public List<TfsWorkingFolder> getFolders() {
+            WorkingFolder[] folders = workspace.getFolders();
+            if (folders == null) return Collections.emptyList();
+
+            List<TfsWorkingFolder> workingFolders = new ArrayList<TfsWorkingFolder>(folders.length);
+            for (WorkingFolder folder : folders) {
+                workingFolders.add(new TfsWorkingFolder(folder.getServerItem(), folder.getLocalItem(), folder.isCloaked()));
+            }
+            return workingFolders;
+        }
+
+        @Override
+        public String getMappedServerPath(String localPath) {
+            return workspace.getMappedServerPath(localPath);
+        }
+
+        @Override
+        public String getMappedLocalPath(String serverPath) {
+            return workspace.getMappedLocalPath(serverPath);
+        }
+
+        @Override
+        public void pendEdit(String[] localPaths) {
+            try {
+                workspace.pendEdit(localPaths, RecursionType.NONE, LockLevel.NONE, null, GetOptions.NONE, PendChangesOptions.NONE);
+            } catch (VersionControlException e) {
+                throw new TfsVersionControlException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void pendAdd(String[] localPaths, boolean recursive) {
+            try {
+                workspace.pendAdd(localPaths, recursive, null, LockLevel.UNCHANGED, GetOptions.NONE, PendChangesOptions.NONE);
+            } catch (VersionControlException e) {
+                throw new TfsVersionControlException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void pendDelete(String[] localPaths) {
+            try {
+                workspace.pendDelete(localPaths, RecursionType.NONE, LockLevel.NONE, GetOptions.NONE, PendChangesOptions.NONE);
+            } catch (VersionControlException e) {
+                throw new TfsVersionControlException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void pendRename(String localPath, String renamedLocalPath) {
+            try {
+                workspace.pendRename(localPath, renamedLocalPath, LockLevel.UNCHANGED, GetOptions.NONE, true, PendChangesOptions.NONE);
+            } catch (VersionControlException e) {
+                throw new TfsVersionControlException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public TfsPendingChange[] getPendingChanges(String[] serverPaths, RecursionType recursion) {
+            PendingSet pendingSet = workspace.getPendingChanges(serverPaths, recursion, false);
+            PendingChange[] pendingChanges = pendingSet == null ? null : pendingSet.getPendingChanges();
+            if (pendingChanges == null) return new TfsPendingChange[0];
+
+            TfsPendingChange[] changes = new TfsPendingChange[pendingChanges.length];
+            for (int i = 0; i < pendingChanges.length; i++) {
+                changes[i] = new SdkPendingChange(pendingChanges[i]);
+            }
+            return changes;
+        }
+
+        @Override
+        public int checkIn(TfsPendingChange[] pendingChanges, String comment) {
+            PendingChange[] changes = new PendingChange[pendingChanges.length];
+            for (int i = 0; i < pendingChanges.length; i++) {
+                changes[i] = ((SdkPendingChange) pendingChanges[i]).pendingChange;
+            }
+            try {
+                return workspace.checkIn(changes, comment);
+            } catch (VersionControlException e) {
+                throw new TfsVersionControlException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void get(String[] serverPaths) {
+            GetRequest[] getRequests = new GetRequest[serverPaths.length];
+            for (int i = 0; i < serverPaths.length; i++) {
+                getRequests[i] = new GetRequest(new ItemSpec(serverPaths[i], RecursionType.NONE), LatestVersionSpec.INSTANCE);
+            }
+            workspace.get(getRequests, GetOptions.NONE);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof SdkWorkspace)) return false;
+            SdkWorkspace otherWorkspace = (SdkWorkspace) other;
+            return getName().equalsIgnoreCase(otherWorkspace.getName()) && getOwnerName().equalsIgnoreCase(otherWorkspace.getOwnerName());
+        }
+
+        @Override
+        public int hashCode() {
+            return (getName() + ";" + getOwnerName()).toLowerCase(Locale.ROOT).hashCode();
+        }
+    }
+
+    /**
+     * Keeps the SDK's item, which knows where to download the content from.
+     */
+    private static class SdkItem extends TfsItem {
+        private final Item item;
+
+        private SdkItem(Item item) {
+            super(item.getServerItem(), item.getChangeSetID(), item.getContentHashValue(), item.getItemType() == ItemType.FOLDER);
+            this.item = item;
+        }
+    }
+
+    private static class SdkPendingChange extends TfsPendingChange {
+        private final PendingChange pendingChange;
+
+        private SdkPendingChange(PendingChange pendingChange) {
+            super(pendingChange.getServerItem());
+            this.pendingChange = pendingChange;
+        }
+    }
+}
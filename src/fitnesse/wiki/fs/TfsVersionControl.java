@@ -0,0 +1,63 @@
+package fitnesse.wiki.fs;
+
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.RecursionType;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The calls {@link TfsWrapper} makes to the TFS SDK over one connection to the server, kept to a thin layer so that
+ * everything above it can run against a stub.  {@link TfsSdkVersionControl} makes them with the SDK.
+ */
+public interface TfsVersionControl extends Closeable {
+    /**
+     * @return every workspace on the server with its working folders.
+     */
+    List<TfsWorkspace> getWorkspaces();
+
+    /**
+     * Brings the local workstation's copy of the owner's workspace information up to date.
+     */
+    void refreshWorkspaceInfo(String owner);
+
+    /**
+     * @return the item as it was at the changeset, or null if it didn't exist then.
+     */
+    TfsItem getItem(String serverPath, int changesetId);
+
+    /**
+     * Asks for the latest items at all the server paths in one query.  Items aren't tied to a workspace, so any
+     * connection to the server can ask.
+     *
+     * @return for each path, in the same order, the items found at it and, depending on the recursion, under it.
+     * A path with nothing on the server has an empty array.
+     */
+    TfsItem[][] getItems(String[] serverPaths, RecursionType recursion, boolean generateDownloadUrls);
+
+    /**
+     * Downloads the item's content to the file.  The item can come from any connection to the same server.
+     */
+    void download(TfsItem item, File file) throws IOException;
+
+    /**
+     * @return the changesets that touched the server path from the given changeset onwards, newest first, or all of
+     * them when the changeset is 1 or less.  The changeset must exist; TFS refuses a query from one after the latest.
+     */
+    List<TfsHistoryEntry> queryHistory(String serverPath, int fromChangesetId);
+
+    /**
+     * @return the server paths changed at or under the server folder in the changesets from and to the given ones.
+     */
+    Set<String> queryChangedPaths(String serverFolder, int fromChangesetId, int toChangesetId);
+
+    int getLatestChangesetId();
+
+    /**
+     * Closes the connection to the server.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,31 @@
+package fitnesse.wiki.fs;
+
+/**
+ * A mapping of a server folder to a local folder in a workspace, or a cloak that stops the folder being mapped.
+ */
+public class TfsWorkingFolder {
+    private final String serverItem;
+    private final String localItem;
+    private final boolean cloaked;
+
+    public TfsWorkingFolder(String serverItem, String localItem, boolean cloaked) {
+        this.serverItem = serverItem;
+        this.localItem = localItem;
+        this.cloaked = cloaked;
+    }
+
+    public String getServerItem() {
+        return serverItem;
+    }
+
+    /**
+     * @return the local folder, or null for a cloak.
+     */
+    public String getLocalItem() {
+        return localItem;
+    }
+
+    public boolean isCloaked() {
+        return cloaked;
+    }
+}
@@ -0,0 +1,65 @@
+package fitnesse.wiki.fs;
+
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.RecursionType;
+
+import java.util.List;
+
+/**
+ * The calls {@link TfsWrapper} makes on a workspace.  Workspaces are equal when they have the same name and owner,
+ * whichever lookup they came from.
+ */
+public interface TfsWorkspace {
+    String getName();
+
+    String getOwnerName();
+
+    String getComputer();
+
+    /**
+     * @return true if the workspace is on this computer and owned by the connected user, so its files are here.
+     */
+    boolean isLocal();
+
+    List<TfsWorkingFolder> getFolders();
+
+    /**
+     * @return the server path the local path is mapped to, or null if it isn't mapped or is cloaked.
+     */
+    String getMappedServerPath(String localPath);
+
+    /**
+     * @return the local path the server path is mapped to, or null if it isn't mapped or is cloaked.
+     */
+    String getMappedLocalPath(String serverPath);
+
+    void pendEdit(String[] localPaths);
+
+    /**
+     * Pends adds of the files or folders, and of any folders above them that aren't on the server yet.
+     *
+     * @param recursive also add everything under a folder.
+     */
+    void pendAdd(String[] localPaths, boolean recursive);
+
+    void pendDelete(String[] localPaths);
+
+    /**
+     * Pends a rename of the file or folder, which is also made on disk.
+     */
+    void pendRename(String localPath, String renamedLocalPath);
+
+    /**
+     * @return the changes pending on the server paths, and depending on the recursion under them.
+     */
+    TfsPendingChange[] getPendingChanges(String[] serverPaths, RecursionType recursion);
+
+    /**
+     * @return the changeset the changes went into, or 0 if none was made.
+     */
+    int checkIn(TfsPendingChange[] pendingChanges, String comment);
+
+    /**
+     * Gets the latest version of the server paths into the workspace.
+     */
+    void get(String[] serverPaths);
+}
@@ -0,0 +1,76 @@
+package fitnesse.wiki.fs;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps the local workstation's workspace information up to date without refreshing it before every operation.  Each
+ * owner's information is refreshed at most once per interval, unless a refresh is forced after an operation failed,
+ * and callers that need a refresh at the same time wait for the same one.
+ */
+public class TfsWorkspaceInfoRefresher {
+    private final TfsVersionControl versionControl;
+    private final long intervalMillis;
+    private final TfsMetrics metrics;
+    private final ConcurrentMap<String, Long> lastRefreshMillis = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentMap<String, FutureTask<Void>> refreshesInFlight = new ConcurrentHashMap<String, FutureTask<Void>>();
+
+    public TfsWorkspaceInfoRefresher(TfsVersionControl versionControl, long intervalMillis, TfsMetrics metrics) {
+        this.versionControl = versionControl;
+        this.intervalMillis = intervalMillis;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Refreshes the owner's workspace information unless it was refreshed within the interval.
+     */
+    public void ensureFresh(String owner) {
+        Long lastRefresh = lastRefreshMillis.get(owner);
+        if (lastRefresh != null && System.currentTimeMillis() - lastRefresh < intervalMillis) return;
+        refresh(owner);
+    }
+
+    /**
+     * Refreshes the owner's workspace information now, or waits for a refresh that is already running.
+     */
+    public void refresh(final String owner) {
+        FutureTask<Void> refresh = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                long started = System.nanoTime();
+                boolean succeeded = false;
+                try {
+                    versionControl.refreshWorkspaceInfo(owner);
+                    succeeded = true;
+                } finally {
+                    metrics.record(TfsMetrics.Operation.WORKSPACE_INFO_REFRESH, started, succeeded);
+                }
+                lastRefreshMillis.put(owner, System.currentTimeMillis());
+                return null;
+            }
+        });
+
+        FutureTask<Void> runningRefresh = refreshesInFlight.putIfAbsent(owner, refresh);
+        if (runningRefresh == null) {
+            runningRefresh = refresh;
+            try {
+                refresh.run();
+            } finally {
+                refreshesInFlight.remove(owner, refresh);
+            }
+        }
+
+        try {
+            runningRefresh.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TfsFileVersionControllerException("Interrupted while refreshing TFS workspace information for " + owner);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new TfsFileVersionControllerException(String.format("Could not refresh TFS workspace information for %s: %s", owner, e.getCause()));
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package fitnesse.wiki.fs;
+
+import java.util.Locale;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write locks for workspaces, so only one thread pends and checks in changes in a workspace at a time and a check-in
+ * never picks up another request's pending changes.  Workspaces are spread over a fixed number of stripes, so writes
+ * to different workspaces usually run in parallel without keeping a lock for every workspace ever seen.
+ */
+public class TfsWorkspaceLocks {
+    private static final int DEFAULT_STRIPES = 64;
+
+    private final Lock[] stripes;
+
+    public TfsWorkspaceLocks() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public TfsWorkspaceLocks(int stripeCount) {
+        stripes = new Lock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * @return the lock to hold while changing the workspace.  Workspace names are case insensitive, like on the server.
+     */
+    public Lock get(String workspaceName, String ownerName) {
+        int hash = (workspaceName + ";" + ownerName).toLowerCase(Locale.ROOT).hashCode();
+        return stripes[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % stripes.length];
+    }
+}
@@ -0,0 +1,136 @@
+package fitnesse.wiki.fs;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Index of every mapped (or cloaked) local folder to the workspace that owns it.  Only workspaces of this computer
+ * and user are indexed, since the server lists everyone's and changes can only be pended in a local one.
+ * <p>
+ * The index is built once from the server's workspace list and then replaced wholesale, either by a background
+ * refresh or when a lookup misses, so lookups never take a lock or make a server call.  Lookups walk up from the
+ * file to the closest indexed folder, which gives the longest matching mapping.
+ */
+public class TfsWorkspaceMappings {
+    private static final Logger LOG = Logger.getLogger(TfsWorkspaceMappings.class.getName());
+    private static final long MINIMUM_MISS_REFRESH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final boolean CASE_INSENSITIVE_PATHS = File.separatorChar == '\\';
+
+    private final TfsVersionControl versionControl;
+    private final TfsMetrics metrics;
+    private final ScheduledExecutorService refresher;
+    private volatile Map<String, TfsWorkspace> workspacesByLocalFolder = Collections.emptyMap();
+    private volatile long lastRefreshMillis;
+
+    public TfsWorkspaceMappings(TfsVersionControl versionControl, int refreshSeconds, TfsMetrics metrics) {
+        this.versionControl = versionControl;
+        this.metrics = metrics;
+        refresh();
+
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tfs-workspace-mappings");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (refreshSeconds > 0) {
+            refresher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh();
+                    } catch (RuntimeException e) {
+                        LOG.warning("Could not refresh TFS workspace mappings: " + e.getMessage());
+                    }
+                }
+            }, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * @return the workspace with the longest mapping containing the path, or null if no workspace maps it.  A workspace
+     * is also returned for cloaked folders, for which {@link TfsWorkspace#getMappedServerPath(String)} is null.
+     */
+    public TfsWorkspace getWorkspace(String filePath) {
+        Path path = Paths.get(filePath).toAbsolutePath().normalize();
+        TfsWorkspace workspace = find(workspacesByLocalFolder, path);
+        if (workspace == null && refreshAfterMiss()) {
+            workspace = find(workspacesByLocalFolder, path);
+        }
+        return workspace;
+    }
+
+    /**
+     * @return each workspace with a mapped or cloaked folder, once.
+     */
+    public Collection<TfsWorkspace> getWorkspaces() {
+        return new LinkedHashSet<TfsWorkspace>(workspacesByLocalFolder.values());
+    }
+
+    public synchronized void refresh() {
+        List<TfsWorkspace> repositoryWorkspaces;
+        long started = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            repositoryWorkspaces = versionControl.getWorkspaces();
+            succeeded = true;
+        } finally {
+            metrics.record(TfsMetrics.Operation.WORKSPACE_LOOKUP, started, succeeded);
+        }
+        Map<String, TfsWorkspace> index = new HashMap<String, TfsWorkspace>();
+        for (TfsWorkspace workspace : repositoryWorkspaces) {
+            if (!workspace.isLocal()) continue;
+            for (TfsWorkingFolder folder : workspace.getFolders()) {
+                if (folder.getLocalItem() == null) continue;
+                String key = toKey(Paths.get(folder.getLocalItem()).toAbsolutePath().normalize());
+                if (!index.containsKey(key)) index.put(key, workspace);
+            }
+        }
+        workspacesByLocalFolder = index;
+        lastRefreshMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Stops refreshing the mappings in the background.
+     */
+    public void close() {
+        refresher.shutdownNow();
+    }
+
+    private boolean refreshAfterMiss() {
+        if (System.currentTimeMillis() - lastRefreshMillis < MINIMUM_MISS_REFRESH_INTERVAL_MILLIS) return false;
+        synchronized (this) {
+            if (System.currentTimeMillis() - lastRefreshMillis < MINIMUM_MISS_REFRESH_INTERVAL_MILLIS) return true;
+            refresh();
+        }
+        return true;
+    }
+
+    private static TfsWorkspace find(Map<String, TfsWorkspace> index, Path path) {
+        for (Path folder = path; folder != null; folder = folder.getParent()) {
+            TfsWorkspace workspace = index.get(toKey(folder));
+            if (workspace != null) return workspace;
+        }
+        return null;
+    }
+
+    private static String toKey(Path folder) {
+        String key = folder.toString();
+        return CASE_INSENSITIVE_PATHS ? key.toLowerCase(Locale.ROOT) : key;
+    }
+}
@@ -1,186 +1,735 @@
 package fitnesse.wiki.fs;
 
-import com.microsoft.tfs.core.TFSTeamProjectCollection;
-import com.microsoft.tfs.core.clients.versioncontrol.*;
-import com.microsoft.tfs.core.clients.versioncontrol.events.NonFatalErrorEvent;
-import com.microsoft.tfs.core.clients.versioncontrol.events.NonFatalErrorListener;
-import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.*;
-import com.microsoft.tfs.core.clients.versioncontrol.specs.ItemSpec;
-import com.microsoft.tfs.core.clients.versioncontrol.specs.version.LatestVersionSpec;
-import com.microsoft.tfs.core.config.persistence.PersistenceStoreProvider;
-import com.microsoft.tfs.core.httpclient.DefaultNTCredentials;
-import fitnesse.wiki.fs.exceptions.NotEnoughWorkspaceItemSetsException;
-import fitnesse.wiki.fs.exceptions.TooManyWorkspaceItemSetsException;
-import fitnesse.wiki.fs.exceptions.TooManyWorkspaceItemsException;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.RecursionType;
+import fitnesse.wiki.fs.exceptions.TfsVersionControlException;
 
+import java.io.Closeable;
 import java.io.File;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-public class TfsWrapper {
-    private final String tfsServerUri;
-    private VersionControlClient versionControlClient;
-    private PersistenceStoreProvider persistenceStoreProvider;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getChangesetPollSeconds;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getDownloadFolder;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getDownloadFolderBytes;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getDownloadThreads;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getItemMetadataSeconds;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getReadConnections;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getTfsServer;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getWorkspaceInfoRefreshSeconds;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.getWorkspaceRefreshSeconds;
+import static fitnesse.wiki.fs.TfsPropertiesHelper.isGetLatestOnChange;
 
-    public TfsWrapper(String tfsServerUri) {
-        this.tfsServerUri = tfsServerUri;
-        initialise();
+public class TfsWrapper implements TfsBackend, Closeable {
+    private static final Logger LOG = Logger.getLogger(TfsWrapper.class.getName());
+    private static final int MAXIMUM_BASE_CHANGESETS = 50000;
+
+    private TfsWorkspaceMappings workspaceMappings;
+    private final TfsContentHashes contentHashes = new TfsContentHashes();
+    private ExecutorService downloadExecutor;
+    private Semaphore downloadPermits;
+    private TfsItemMetadataCache itemMetadataCache;
+    private TfsDownloadArea downloadArea;
+    private TfsChangesetWatcher changesetWatcher;
+    private TfsWorkspaceInfoRefresher workspaceInfoRefresher;
+    private TfsClientPool readClients;
+    private TfsVersionControl versionControl;
+    private final List<TfsVersionControl> readConnections = new ArrayList<TfsVersionControl>();
+    private final TfsWorkspaceLocks workspaceLocks = new TfsWorkspaceLocks();
+    private final TfsMetrics metrics = TfsMetrics.shared();
+    private final TfsNonFatalErrorRouter nonFatalErrorRouter = new TfsNonFatalErrorRouter(metrics);
+    private final Map<String, Integer> baseChangesets = Collections.synchronizedMap(new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAXIMUM_BASE_CHANGESETS;
+        }
+    });
+
+    /**
+     * Connects to the TFS server in the properties.  If it can't be reached every connection already made is closed
+     * again, so retrying doesn't leave connections behind.
+     */
+    public TfsWrapper(Properties properties) {
+        String tfsServerUri = getTfsServer(properties);
+        try {
+            for (int i = 0; i < getReadConnections(properties); i++) {
+                readConnections.add(new TfsSdkVersionControl(tfsServerUri, nonFatalErrorRouter));
+            }
+            versionControl = new TfsSdkVersionControl(tfsServerUri, nonFatalErrorRouter);
+            initialise(properties);
+        } catch (RuntimeException | Error e) {
+            close();
+            throw e;
+        }
     }
 
-    private void initialise() {
-        TFSTeamProjectCollection tpc;
+    /**
+     * Uses the given connections instead of connecting to the TFS server in the properties.  They are closed with the
+     * wrapper, or straight away if it can't start.
+     *
+     * @param readConnections the connections shared out for item queries, downloads and history queries.
+     */
+    public TfsWrapper(Properties properties, TfsVersionControl versionControl, List<TfsVersionControl> readConnections) {
+        this.versionControl = versionControl;
+        this.readConnections.addAll(readConnections);
         try {
-            tpc = new TFSTeamProjectCollection(new URI(tfsServerUri), new DefaultNTCredentials());
-        } catch (URISyntaxException e) {
-            e.printStackTrace();
-            throw new RuntimeException(String.format("Could not connect to TFS project collection: %s", tfsServerUri));
+            initialise(properties);
+        } catch (RuntimeException | Error e) {
+            close();
+            throw e;
         }
+    }
 
-        persistenceStoreProvider = tpc.getPersistenceStoreProvider();
-        versionControlClient = tpc.getVersionControlClient();
+    private void initialise(Properties properties) {
+        readClients = new TfsClientPool(readConnections);
+        workspaceInfoRefresher = new TfsWorkspaceInfoRefresher(versionControl,
+                TimeUnit.SECONDS.toMillis(getWorkspaceInfoRefreshSeconds(properties)), metrics);
+        workspaceMappings = new TfsWorkspaceMappings(versionControl, getWorkspaceRefreshSeconds(properties), metrics);
+        downloadExecutor = createDownloadExecutor(getDownloadThreads(properties));
+        downloadPermits = new Semaphore(getDownloadThreads(properties));
+        downloadArea = new TfsDownloadArea(getDownloadFolder(properties), getDownloadFolderBytes(properties), metrics);
+        itemMetadataCache = new TfsItemMetadataCache(TimeUnit.SECONDS.toMillis(getItemMetadataSeconds(properties)), readClients, metrics);
+        changesetWatcher = new TfsChangesetWatcher(versionControl, workspaceMappings, itemMetadataCache,
+                getChangesetPollSeconds(properties), isGetLatestOnChange(properties), metrics);
     }
 
-    public File getRepositoryFile(File localFile) {
-        Path normalisedFilePath = getNormalisedFilePath(localFile);
-        String filePath = normalisedFilePath.toString();
-        WorkspaceItem workspaceItem = getWorkspaceItem(filePath);
-        return workspaceItem == null ? null : workspaceItem.downloadFileToTempLocation(versionControlClient, normalisedFilePath.getFileName().toString());
+    /**
+     * Stops the background threads, deletes the downloaded files and closes every connection to TFS.
+     */
+    @Override
+    public void close() {
+        if (changesetWatcher != null) changesetWatcher.close();
+        if (workspaceMappings != null) workspaceMappings.close();
+        if (downloadExecutor != null) downloadExecutor.shutdownNow();
+        if (downloadArea != null) downloadArea.close();
+        for (TfsVersionControl readConnection : readConnections) {
+            close(readConnection);
+        }
+        if (versionControl != null && !readConnections.contains(versionControl)) close(versionControl);
     }
 
-    public void delete(File localFile) {
-        String filePath = getNormalisedFilePath(localFile).toString();
-        Workspace workspace = getWorkspace(filePath);
-        if (workspace != null) {
-            NonFatalErrorListener nonFatalEventListener = new NonFatalErrorListener() {
+    private static void close(TfsVersionControl connection) {
+        try {
+            connection.close();
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Could not close a TFS connection", e);
+        }
+    }
+
+    /**
+     * Finds the latest server copy of each file, asking for the items of each workspace in one query and downloading
+     * the files that differ from their local copy in parallel.
+     *
+     * @return for each file, in the same order, the local file if it matches the server, a copy in the download area
+     * if it doesn't, or null if the file isn't mapped or isn't on the server.
+     */
+    @Override
+    public File[] getRepositoryFiles(File... localFiles) {
+        File[] repositoryFiles = new File[localFiles.length];
+        Map<TfsWorkspace, List<Integer>> indexesByWorkspace = new LinkedHashMap<TfsWorkspace, List<Integer>>();
+        for (int i = 0; i < localFiles.length; i++) {
+            String filePath = getNormalisedFilePath(localFiles[i]).toString();
+            TfsWorkspace workspace = workspaceMappings.getWorkspace(filePath);
+            if (workspace == null || workspace.getMappedServerPath(filePath) == null) continue;
+
+            List<Integer> indexes = indexesByWorkspace.get(workspace);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                indexesByWorkspace.put(workspace, indexes);
+            }
+            indexes.add(i);
+        }
+
+        Map<Integer, Future<File>> downloads = new LinkedHashMap<Integer, Future<File>>();
+        for (Map.Entry<TfsWorkspace, List<Integer>> workspaceIndexes : indexesByWorkspace.entrySet()) {
+            List<Integer> indexes = workspaceIndexes.getValue();
+            List<String> filePaths = new ArrayList<String>(indexes.size());
+            for (int index : indexes) {
+                filePaths.add(getNormalisedFilePath(localFiles[index]).toString());
+            }
+
+            TfsItem[] items = getWorkspaceItems(workspaceIndexes.getKey(), filePaths, true);
+            for (int i = 0; i < indexes.size(); i++) {
+                TfsItem item = items[i];
+                if (item == null) continue;
+
+                File localFile = new File(filePaths.get(i));
+                baseChangesets.put(toKey(item.getServerItem()), item.getChangesetId());
+                if (contentHashes.matches(localFile, item.getContentHash())) {
+                    repositoryFiles[indexes.get(i)] = localFile;
+                } else {
+                    downloads.put(indexes.get(i), download(item));
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, Future<File>> download : downloads.entrySet()) {
+            repositoryFiles[download.getKey()] = waitFor(download.getValue());
+        }
+        return repositoryFiles;
+    }
+
+    private Future<File> download(final TfsItem item) {
+        return downloadExecutor.submit(new Callable<File>() {
+            @Override
+            public File call() throws InterruptedException {
+                downloadPermits.acquire();
+                TfsVersionControl client = readClients.acquire();
+                try {
+                    return downloadArea.download(item, client);
+                } finally {
+                    readClients.release(client);
+                    downloadPermits.release();
+                }
+            }
+        });
+    }
+
+    private static <T> T waitFor(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TfsFileVersionControllerException("Interrupted while downloading from TFS.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new TfsFileVersionControllerException("Could not download from TFS: " + e.getCause());
+        }
+    }
+
+    /**
+     * Uses virtual threads when the JVM has them, and otherwise a fixed pool of daemon threads.
+     */
+    private static ExecutorService createDownloadExecutor(int threads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger threadCount = new AtomicInteger();
+
                 @Override
-                public void onNonFatalError(NonFatalErrorEvent nonFatalErrorEvent) {
-                    System.out.println(nonFatalErrorEvent.getMessage());
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "tfs-download-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
                 }
-            };
-            versionControlClient.getEventEngine().addNonFatalErrorListener(nonFatalEventListener);
-            Workstation.getCurrent(persistenceStoreProvider).ensureUpdateWorkspaceInfoCache(versionControlClient, workspace.getOwnerName());
-            String parentPath = Paths.get(filePath).getParent().toAbsolutePath().toString();
-            workspace.pendDelete(new String[]{filePath}, RecursionType.NONE, LockLevel.NONE, GetOptions.NONE, PendChangesOptions.NONE);
-            int failures = checkinPendingChanges(workspace, "Deleting file " + filePath + " to TFS");
-            if (failures > 0) System.out.println(String.format("Failures checking-in %s: %d", parentPath, failures));
-        } else {
-            System.out.println(String.format("Could not find workspace to delete %s from.", filePath));
+            });
         }
     }
 
-    public void checkinPending(File localFile) {
+    @Override
+    public void checkConnection() {
+        versionControl.getLatestChangesetId();
+    }
+
+    @Override
+    public TfsNonFatalErrorRouter getNonFatalErrorRouter() {
+        return nonFatalErrorRouter;
+    }
+
+    @Override
+    public List<File> getMappedFolders() {
+        List<File> mappedFolders = new ArrayList<File>();
+        for (TfsWorkspace workspace : workspaceMappings.getWorkspaces()) {
+            for (TfsWorkingFolder folder : workspace.getFolders()) {
+                if (!folder.isCloaked() && folder.getLocalItem() != null) mappedFolders.add(new File(folder.getLocalItem()));
+            }
+        }
+        return mappedFolders;
+    }
+
+    /**
+     * @return the server path the local file is mapped to, or null if it isn't mapped.
+     */
+    @Override
+    public String getServerPath(File localFile) {
         String filePath = getNormalisedFilePath(localFile).toString();
-        Workspace workspace = getWorkspace(filePath);
-        if (workspace != null) {
-            Workstation.getCurrent(persistenceStoreProvider).ensureUpdateWorkspaceInfoCache(versionControlClient, workspace.getOwnerName());
-            workspace.pendEdit(new String[]{filePath}, RecursionType.NONE, LockLevel.NONE, null, GetOptions.NONE, PendChangesOptions.NONE);
-            int failures = checkinPendingChanges(workspace, String.format("checking in file %s", filePath));
-            if (failures > 0) System.out.println(String.format("Failures checking-in: %d", failures));
-        } else {
-            System.out.println(String.format("Could not find workspace to check-in %s to.", filePath));
+        TfsWorkspace workspace = workspaceMappings.getWorkspace(filePath);
+        return workspace == null ? null : workspace.getMappedServerPath(filePath);
+    }
+
+    /**
+     * @return the content of the server item as it was at the changeset, or null if the item didn't exist then.
+     */
+    @Override
+    public byte[] getRevisionContent(String serverPath, int changesetId) throws IOException {
+        TfsVersionControl client = readClients.acquire();
+        try {
+            TfsItem item;
+            long started = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                item = client.getItem(serverPath, changesetId);
+                succeeded = true;
+            } finally {
+                metrics.record(TfsMetrics.Operation.ITEM_QUERY, started, succeeded);
+            }
+            if (item == null) return null;
+
+            return Files.readAllBytes(downloadArea.download(item, client).toPath());
+        } finally {
+            readClients.release(client);
         }
     }
 
-    public List<Changeset> getHistory(File localFile) {
-        Path normalisedFilePath = getNormalisedFilePath(localFile);
-        String filePath = normalisedFilePath.toString();
-        Changeset[] changesets = versionControlClient.queryHistory(filePath, LatestVersionSpec.INSTANCE, 0,
-                RecursionType.NONE, null, null, LatestVersionSpec.INSTANCE, Integer.MAX_VALUE, true, false, false, false);
+    /**
+     * @return the changesets that touched the server path from the given changeset onwards, newest first.  Only the
+     * changeset details are asked for, not the changes in them.
+     */
+    @Override
+    public List<TfsHistoryEntry> getHistory(String serverPath, int fromChangesetId) {
+        TfsVersionControl client = readClients.acquire();
+        long started = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            List<TfsHistoryEntry> history = fromChangesetId > 1 && fromChangesetId > client.getLatestChangesetId()
+                    ? new ArrayList<TfsHistoryEntry>()
+                    : client.queryHistory(serverPath, fromChangesetId);
+            succeeded = true;
+            return history;
+        } finally {
+            metrics.record(TfsMetrics.Operation.HISTORY_QUERY, started, succeeded);
+            readClients.release(client);
+        }
+    }
+
+    @Override
+    public Map<File, byte[]> getServerFileHashes(File localFolder) {
+        Map<File, byte[]> hashes = new HashMap<File, byte[]>();
+        String folderPath = getNormalisedFilePath(localFolder).toString();
+        TfsWorkspace workspace = getWorkspace(folderPath);
+        if (workspace == null) return hashes;
+
+        TfsItem[][] itemSets;
+        TfsVersionControl client = readClients.acquire();
+        long started = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            itemSets = client.getItems(new String[]{workspace.getMappedServerPath(folderPath)}, RecursionType.FULL, false);
+            succeeded = true;
+        } finally {
+            metrics.record(TfsMetrics.Operation.ITEM_QUERY, started, succeeded);
+            readClients.release(client);
+        }
 
-        return Arrays.asList(changesets);
+        for (TfsItem item : itemSets[0]) {
+            if (item.isFolder()) continue;
+            String localPath = workspace.getMappedLocalPath(item.getServerItem());
+            if (localPath != null) hashes.put(getNormalisedFilePath(new File(localPath)).toFile(), item.getContentHash());
+        }
+        return hashes;
     }
 
-    public void addToRepository(File localFile) {
-        String filePath = getNormalisedFilePath(localFile).toString();
-        Workspace workspace = getWorkspace(filePath);
-        if (workspace != null) {
-            NonFatalErrorListener nonFatalEventListener = new NonFatalErrorListener() {
-                @Override
-                public void onNonFatalError(NonFatalErrorEvent nonFatalErrorEvent) {
-                    System.out.println(nonFatalErrorEvent.getMessage());
-                }
-            };
-            versionControlClient.getEventEngine().addNonFatalErrorListener(nonFatalEventListener);
-            Workstation.getCurrent(persistenceStoreProvider).ensureUpdateWorkspaceInfoCache(versionControlClient, workspace.getOwnerName());
-            String parentPath = Paths.get(filePath).getParent().toAbsolutePath().toString();
-            workspace.pendAdd(new String[]{filePath}, false, null, LockLevel.UNCHANGED, GetOptions.NONE, PendChangesOptions.NONE);
-            int failures = checkinPendingChanges(workspace, "Adding file " + filePath + " to TFS");
-            if (failures > 0) System.out.println(String.format("Failures checking-in %s: %d", parentPath, failures));
-        } else {
-            System.out.println(String.format("Could not find workspace to add %s to.", filePath));
+    /**
+     * Compares the server's version of each file with the version this plugin last read or checked in, without
+     * downloading anything.  For a file it hasn't read, or has forgotten reading, the local copy is compared with the
+     * server's content instead.  Files that aren't on the server can't conflict.
+     *
+     * @return the files that have been checked in on the server by someone else since.
+     */
+    @Override
+    public List<File> findConflicts(File... localFiles) {
+        List<File> conflicts = new ArrayList<File>();
+        for (Map.Entry<TfsWorkspace, WorkspaceChanges> workspaceChanges : groupByWorkspace(localFiles, new File[0]).entrySet()) {
+            TfsWorkspace workspace = workspaceChanges.getKey();
+            List<String> filePaths = workspaceChanges.getValue().filePaths;
+            String[] serverPaths = new String[filePaths.size()];
+            for (int i = 0; i < serverPaths.length; i++) {
+                serverPaths[i] = workspace.getMappedServerPath(filePaths.get(i));
+            }
+            TfsItem[] items = queryItems(serverPaths, false);
+            for (int i = 0; i < items.length; i++) {
+                if (items[i] == null) continue;
+                File localFile = new File(filePaths.get(i));
+                Integer baseChangesetId = baseChangesets.get(toKey(items[i].getServerItem()));
+                boolean changed = baseChangesetId != null ? items[i].getChangesetId() > baseChangesetId
+                        : !contentHashes.matches(localFile, items[i].getContentHash());
+                if (changed) conflicts.add(localFile);
+            }
         }
+        return conflicts;
     }
 
-    private Path getNormalisedFilePath(File file) {
-        return file.toPath().toAbsolutePath().normalize();
+    /**
+     * Adds the files that aren't on the server yet and edits the ones that are, checking each workspace's changes in
+     * as a single changeset.  Files that aren't mapped to a workspace are skipped.
+     */
+    @Override
+    public TfsCheckinResult checkinFiles(String comment, File... localFiles) {
+        return checkin(comment, localFiles, new File[0]);
     }
 
-    private WorkspaceItem getWorkspaceItem(String filePath) {
-        WorkspaceItemSet[] workspaceItemSets = getWorkspaceItemSets(filePath);
-        if (workspaceItemSets == null) return null;
+    /**
+     * Deletes the files from the server, checking each workspace's deletes in as a single changeset.  Files that
+     * aren't mapped to a workspace are skipped.
+     */
+    @Override
+    public TfsCheckinResult deleteFiles(String comment, File... localFiles) {
+        return checkin(comment, new File[0], localFiles);
+    }
 
-        WorkspaceItem[] workspaceItems = workspaceItemSets[0].getItems();
-        if (workspaceItems == null || workspaceItems.length == 0) return null;
-        if (workspaceItems.length > 1) throw new TooManyWorkspaceItemsException(workspaceItemSets[0], workspaceItems);
+    /**
+     * Sends saves and deletes together, checking each workspace's changes in as a single changeset.  Adds and edits
+     * are pended before deletes, and deletes of files that never reached the server are dropped.  A file must not be
+     * both saved and deleted in the same call.
+     * <p>
+     * Changes to a workspace are made while holding its write lock, so concurrent calls for the same workspace are
+     * checked in one after the other, each with only its own changes.
+     */
+    @Override
+    public TfsCheckinResult checkin(String comment, File[] savedFiles, File[] deletedFiles) {
+        TfsCheckinResult result = new TfsCheckinResult();
+        for (Map.Entry<TfsWorkspace, WorkspaceChanges> workspaceChanges : groupByWorkspace(savedFiles, deletedFiles).entrySet()) {
+            TfsWorkspace workspace = workspaceChanges.getKey();
+            WorkspaceChanges changes = workspaceChanges.getValue();
+            List<String> filePaths = changes.filePaths;
 
-        return workspaceItems[0];
+            String[] serverPaths = new String[filePaths.size()];
+            for (int i = 0; i < filePaths.size(); i++) {
+                serverPaths[i] = workspace.getMappedServerPath(filePaths.get(i));
+            }
+
+            Lock workspaceLock = workspaceLocks.get(workspace.getName(), workspace.getOwnerName());
+            workspaceLock.lock();
+            try {
+                checkin(workspace, changes, serverPaths, comment, result);
+            } finally {
+                workspaceLock.unlock();
+            }
+        }
+        return result;
     }
 
-    private Workspace getWorkspace(String filePath) {
-        Workspace[] repositoryWorkspaces = getRepositoryWorkspaces();
-        for (Workspace workspace : repositoryWorkspaces) {
-            String mappedServerPath = workspace.getMappedServerPath(filePath);
-            if (mappedServerPath != null) return workspace;
+    /**
+     * Pends a rename of the item, which TFS also makes on disk, and checks in everything pending under the new name.
+     * For a folder that is a single rename of the folder itself, however many files are under it.
+     */
+    @Override
+    public TfsCheckinResult rename(String comment, File originalFile, File renamedFile) {
+        String originalPath = getNormalisedFilePath(originalFile).toString();
+        String renamedPath = getNormalisedFilePath(renamedFile).toString();
+        TfsWorkspace workspace = getWorkspace(originalPath);
+        if (workspace == null || !workspace.equals(getWorkspace(renamedPath))) return null;
+        if (getWorkspaceItems(workspace, Collections.singletonList(originalPath), false)[0] == null) return null;
+
+        final String originalServerPath = workspace.getMappedServerPath(originalPath);
+        final String renamedServerPath = workspace.getMappedServerPath(renamedPath);
+        TfsCheckinResult result = new TfsCheckinResult();
+        Lock workspaceLock = workspaceLocks.get(workspace.getName(), workspace.getOwnerName());
+        workspaceLock.lock();
+        nonFatalErrorRouter.begin();
+        try {
+            workspaceInfoRefresher.ensureFresh(workspace.getOwnerName());
+            long started = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                workspace.pendRename(originalPath, renamedPath);
+                succeeded = true;
+            } finally {
+                metrics.record(TfsMetrics.Operation.PEND, started, succeeded);
+            }
+            int changesetId = checkinPendingChanges(workspace, new String[]{renamedServerPath}, RecursionType.FULL, comment);
+            if (changesetId > 0) result.addChangeset(changesetId);
+        } finally {
+            result.addNonFatalErrors(nonFatalErrorRouter.end());
+            forgetBaseChangesets(originalServerPath);
+            itemMetadataCache.invalidateTree(originalServerPath);
+            itemMetadataCache.invalidateTree(renamedServerPath);
+            workspaceLock.unlock();
         }
-        System.out.println(String.format("Could not find a workspace to add %s to TFS", filePath));
-        return null;
+        return result;
+    }
+
+    /**
+     * Pends adds of the folder and of each of the files, rather than a recursive add that would also pick up ignored
+     * files, and checks in everything pending under the folder.  The server skips anything it already has, and adds the
+     * folders between the folder and each file itself.  Nothing is pended for a folder without files, since a pended
+     * add that isn't checked in would go out with whichever check-in next covers the folder.
+     */
+    @Override
+    public TfsCheckinResult addFolder(String comment, File localFolder, File... localFiles) {
+        TfsCheckinResult result = new TfsCheckinResult();
+        String folderPath = getNormalisedFilePath(localFolder).toString();
+        TfsWorkspace workspace = getWorkspace(folderPath);
+        if (workspace == null || localFiles.length == 0) return result;
+        String[] addedPaths = new String[localFiles.length + 1];
+        addedPaths[0] = folderPath;
+        for (int i = 0; i < localFiles.length; i++) {
+            addedPaths[i + 1] = getNormalisedFilePath(localFiles[i]).toString();
+        }
+
+        final String serverPath = workspace.getMappedServerPath(folderPath);
+        Lock workspaceLock = workspaceLocks.get(workspace.getName(), workspace.getOwnerName());
+        workspaceLock.lock();
+        nonFatalErrorRouter.begin();
+        try {
+            workspaceInfoRefresher.ensureFresh(workspace.getOwnerName());
+            long started = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                workspace.pendAdd(addedPaths, false);
+                succeeded = true;
+            } finally {
+                metrics.record(TfsMetrics.Operation.PEND, started, succeeded);
+            }
+            int changesetId = checkinPendingChanges(workspace, new String[]{serverPath}, RecursionType.FULL, comment);
+            if (changesetId > 0) result.addChangeset(changesetId);
+        } finally {
+            result.addNonFatalErrors(nonFatalErrorRouter.end());
+            itemMetadataCache.invalidateTree(serverPath);
+            workspaceLock.unlock();
+        }
+        return result;
+    }
+
+    /**
+     * Drops the changesets last read of the server path and everything under it, which no longer exist there.
+     */
+    private void forgetBaseChangesets(String serverPath) {
+        String folderKey = toKey(serverPath);
+        String childPrefix = folderKey.endsWith("/") ? folderKey : folderKey + "/";
+        synchronized (baseChangesets) {
+            for (Iterator<String> keys = baseChangesets.keySet().iterator(); keys.hasNext(); ) {
+                String key = keys.next();
+                if (key.equals(folderKey) || key.startsWith(childPrefix)) keys.remove();
+            }
+        }
+    }
+
+    private void checkin(TfsWorkspace workspace, WorkspaceChanges changes, String[] serverPaths, String comment, TfsCheckinResult result) {
+        List<String> filePaths = changes.filePaths;
+        TfsItem[] items = getWorkspaceItems(workspace, filePaths, false);
+        List<String> edits = new ArrayList<String>();
+        List<String> adds = new ArrayList<String>();
+        List<String> deletes = new ArrayList<String>();
+        for (int i = 0; i < items.length; i++) {
+            boolean onServer = items[i] != null;
+            if (i >= changes.saveCount) {
+                if (onServer) deletes.add(filePaths.get(i));
+            } else if (onServer) {
+                edits.add(filePaths.get(i));
+            } else {
+                adds.add(filePaths.get(i));
+            }
+        }
+        if (edits.isEmpty() && adds.isEmpty() && deletes.isEmpty()) return;
+
+        String[] checkinPaths = withParentFolders(workspace, adds, serverPaths);
+        nonFatalErrorRouter.begin();
+        try {
+            int changesetId;
+            try {
+                workspaceInfoRefresher.ensureFresh(workspace.getOwnerName());
+                changesetId = pendAndCheckin(workspace, edits, adds, deletes, checkinPaths, comment);
+            } catch (TfsVersionControlException e) {
+                LOG.info(String.format("Retrying check-in after refreshing workspace information: %s", e.getMessage()));
+                workspaceInfoRefresher.refresh(workspace.getOwnerName());
+                changesetId = pendAndCheckin(workspace, edits, adds, deletes, checkinPaths, comment);
+            }
+            if (changesetId > 0) {
+                result.addChangeset(changesetId);
+                for (int i = 0; i < serverPaths.length; i++) {
+                    if (i < changes.saveCount) {
+                        baseChangesets.put(toKey(serverPaths[i]), changesetId);
+                    } else {
+                        baseChangesets.remove(toKey(serverPaths[i]));
+                    }
+                }
+            }
+        } finally {
+            result.addNonFatalErrors(nonFatalErrorRouter.end());
+            for (String checkinPath : checkinPaths) {
+                itemMetadataCache.invalidate(checkinPath);
+            }
+        }
+    }
+
+    private int pendAndCheckin(TfsWorkspace workspace, List<String> edits, List<String> adds, List<String> deletes, String[] checkinPaths, String comment) {
+        long started = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            if (!edits.isEmpty()) workspace.pendEdit(edits.toArray(new String[edits.size()]));
+            if (!adds.isEmpty()) workspace.pendAdd(adds.toArray(new String[adds.size()]), false);
+            if (!deletes.isEmpty()) workspace.pendDelete(deletes.toArray(new String[deletes.size()]));
+            succeeded = true;
+        } finally {
+            metrics.record(TfsMetrics.Operation.PEND, started, succeeded);
+        }
+        return checkinPendingChanges(workspace, checkinPaths, comment);
     }
 
-    private WorkspaceItemSet[] getWorkspaceItemSets(String filePath) {
-        Workspace[] repositoryWorkspaces = getRepositoryWorkspaces();
-        String mappedServerPath = null;
-        Workspace foundWorkspace = null;
-        for (Workspace workspace : repositoryWorkspaces) {
-            foundWorkspace = workspace;
-            mappedServerPath = workspace.getMappedServerPath(filePath);
-            if (mappedServerPath != null) break;
+    /**
+     * Adds the server folders above the added files to the paths to check in, as pending an add also pends adds of the
+     * folders that aren't on the server yet, and TFS won't check in a file without the new folder it is in.
+     */
+    private static String[] withParentFolders(TfsWorkspace workspace, List<String> adds, String[] serverPaths) {
+        if (adds.isEmpty()) return serverPaths;
+        Set<String> paths = new LinkedHashSet<String>(Arrays.asList(serverPaths));
+        for (String add : adds) {
+            String serverPath = workspace.getMappedServerPath(add);
+            for (int slash = serverPath.lastIndexOf('/'); slash > 1; slash = serverPath.lastIndexOf('/', slash - 1)) {
+                if (!paths.add(serverPath.substring(0, slash))) break;
+            }
         }
+        return paths.toArray(new String[paths.size()]);
+    }
 
-        if (mappedServerPath == null) return null;
+    private Map<TfsWorkspace, WorkspaceChanges> groupByWorkspace(File[] savedFiles, File[] deletedFiles) {
+        Map<TfsWorkspace, WorkspaceChanges> changesByWorkspace = new LinkedHashMap<TfsWorkspace, WorkspaceChanges>();
+        addToWorkspaceChanges(changesByWorkspace, savedFiles, true);
+        addToWorkspaceChanges(changesByWorkspace, deletedFiles, false);
+        return changesByWorkspace;
+    }
 
-        ItemSpec[] itemSpecs = {new ItemSpec(mappedServerPath, RecursionType.NONE)};
-        WorkspaceItemSet[] workspaceItemSets = foundWorkspace.getItems(itemSpecs, DeletedState.NON_DELETED, ItemType.ANY, true, GetItemsOptions.NONE);
-        if (workspaceItemSets == null || workspaceItemSets.length == 0)
-            throw new NotEnoughWorkspaceItemSetsException(mappedServerPath);
-        if (workspaceItemSets.length > 1) throw new TooManyWorkspaceItemSetsException(workspaceItemSets);
+    private void addToWorkspaceChanges(Map<TfsWorkspace, WorkspaceChanges> changesByWorkspace, File[] localFiles, boolean saved) {
+        for (File localFile : localFiles) {
+            String filePath = getNormalisedFilePath(localFile).toString();
+            TfsWorkspace workspace = getWorkspace(filePath);
+            if (workspace == null) continue;
 
-        return workspaceItemSets;
+            WorkspaceChanges changes = changesByWorkspace.get(workspace);
+            if (changes == null) {
+                changes = new WorkspaceChanges();
+                changesByWorkspace.put(workspace, changes);
+            }
+            changes.filePaths.add(filePath);
+            if (saved) changes.saveCount++;
+        }
     }
 
-    private Workspace[] getRepositoryWorkspaces() {
-        return versionControlClient.getRepositoryWorkspaces(null, null, null);
+    private Path getNormalisedFilePath(File file) {
+        return file.toPath().toAbsolutePath().normalize();
     }
 
-    private int checkinPendingChanges(final Workspace workspace, final String comment) {
-        PendingSet pendingSet = workspace.getPendingChanges();
-        int cs = 0;
+    private static String toKey(String serverPath) {
+        return serverPath.toLowerCase(Locale.ROOT);
+    }
 
-        if (pendingSet != null) {
-            PendingChange[] pendingChanges = pendingSet.getPendingChanges();
-            if (pendingChanges != null) {
-                System.out.println(String.format("Number of pending changes:%d", pendingChanges.length));
-                cs = workspace.checkIn(pendingChanges, comment);
+    private TfsWorkspace getWorkspace(String filePath) {
+        TfsWorkspace workspace = workspaceMappings.getWorkspace(filePath);
+        if (workspace != null && workspace.getMappedServerPath(filePath) != null) return workspace;
+        LOG.warning(String.format("Could not find a workspace to add %s to TFS", filePath));
+        return null;
+    }
+
+    /**
+     * Asks for the items at all the given paths of a workspace in one query.
+     *
+     * @return the item for each path, in the same order, or null where the path isn't on the server.
+     */
+    private TfsItem[] getWorkspaceItems(TfsWorkspace workspace, List<String> filePaths, boolean generateDownloadUrls) {
+        List<String> serverPaths = new ArrayList<String>(filePaths.size());
+        for (String filePath : filePaths) {
+            serverPaths.add(workspace.getMappedServerPath(filePath));
+        }
+
+        TfsItem[] foundItems = new TfsItem[serverPaths.size()];
+        Map<String, TfsItem> knownItems = itemMetadataCache.lookup(workspace, serverPaths);
+        List<Integer> unknownIndexes = new ArrayList<Integer>();
+        for (int i = 0; i < serverPaths.size(); i++) {
+            if (knownItems.containsKey(serverPaths.get(i))) {
+                foundItems[i] = knownItems.get(serverPaths.get(i));
             } else {
-                System.out.println("Pending changes is null.");
+                unknownIndexes.add(i);
             }
-        } else {
-            System.out.println("Pending set is null.");
         }
+        if (unknownIndexes.isEmpty()) return foundItems;
+
+        String[] unknownServerPaths = new String[unknownIndexes.size()];
+        for (int i = 0; i < unknownServerPaths.length; i++) {
+            unknownServerPaths[i] = serverPaths.get(unknownIndexes.get(i));
+        }
+
+        TfsItem[] unknownItems = queryItems(unknownServerPaths, generateDownloadUrls);
+        for (int i = 0; i < unknownItems.length; i++) {
+            int index = unknownIndexes.get(i);
+            foundItems[index] = unknownItems[i];
+            if (generateDownloadUrls) itemMetadataCache.put(serverPaths.get(index), unknownItems[i]);
+        }
+        return foundItems;
+    }
+
+    /**
+     * Asks the server for the items at the server paths in one query, without looking in the item metadata cache.
+     *
+     * @return the item for each path, in the same order, or null where the path isn't on the server.
+     */
+    private TfsItem[] queryItems(String[] serverPaths, boolean generateDownloadUrls) {
+        TfsItem[][] itemSets;
+        TfsVersionControl client = readClients.acquire();
+        long started = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            itemSets = client.getItems(serverPaths, RecursionType.NONE, generateDownloadUrls);
+            succeeded = true;
+        } finally {
+            metrics.record(TfsMetrics.Operation.ITEM_QUERY, started, succeeded);
+            readClients.release(client);
+        }
+
+        TfsItem[] items = new TfsItem[itemSets.length];
+        for (int i = 0; i < itemSets.length; i++) {
+            items[i] = itemSets[i].length > 0 ? itemSets[i][0] : null;
+        }
+        return items;
+    }
+
+    /**
+     * Checks in only the changes pending on the given server paths, leaving anything else pending in the workspace.
+     */
+    private int checkinPendingChanges(TfsWorkspace workspace, String[] serverPaths, String comment) {
+        return checkinPendingChanges(workspace, serverPaths, RecursionType.NONE, comment);
+    }
+
+    private int checkinPendingChanges(TfsWorkspace workspace, String[] serverPaths, RecursionType recursion, String comment) {
+        TfsPendingChange[] pendingChanges = workspace.getPendingChanges(serverPaths, recursion);
+        if (pendingChanges.length == 0) {
+            LOG.fine("No pending changes to check in.");
+            return 0;
+        }
+
+        if (LOG.isLoggable(Level.FINE)) LOG.fine(String.format("Checking in %d pending changes", pendingChanges.length));
+        long started = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            int changesetId = workspace.checkIn(pendingChanges, comment);
+            succeeded = true;
+            return changesetId;
+        } finally {
+            metrics.record(TfsMetrics.Operation.CHECKIN, started, succeeded);
+        }
+    }
 
-        return cs;
+    /**
+     * Local paths to change in one workspace, saved files first and then deleted files.
+     */
+    private static class WorkspaceChanges {
+        private final List<String> filePaths = new ArrayList<String>();
+        private int saveCount;
     }
 }
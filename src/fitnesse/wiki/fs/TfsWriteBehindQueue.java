@@ -0,0 +1,391 @@
+package fitnesse.wiki.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Sends saves and deletes to TFS on a background thread so wiki requests only wait for the local disk.
+ * <p>
+ * Every operation is written to a {@link TfsCheckinJournal} before it is queued and removed from it once TFS has it,
+ * so anything still queued when the server stops is sent after the next start.  Only the latest operation on each file
+ * is kept, so repeated saves of a page are sent once.  With a coalescing window, a file is held back until it hasn't
+ * changed for that long, and everything ready is checked in as one changeset.  A file saved more often than the window
+ * is still sent once it has been held for the longest hold time since it was first queued.
+ * <p>
+ * Nothing is sent while the {@link TfsConnection} isn't made, before it first is or after it was lost; everything
+ * queued meanwhile is sent as soon as it is made again.
+ * At most one drain of the queue is scheduled at a time; it schedules the next one itself while anything is left.
+ * <p>
+ * When a check-in fails, each of its files is retried on its own with a growing delay, so one file TFS refuses, such as
+ * one locked by someone else, doesn't hold back the others.  A file that still fails after the maximum number of
+ * attempts is parked and reported as a non-fatal error, and so is a save of a file someone else has checked in since
+ * it was last read, rather than overwrite their change.  A parked file stays in the journal and is tried again when it is next
+ * saved or deleted, or after a restart.
+ */
+public class TfsWriteBehindQueue {
+    private static final Logger LOG = Logger.getLogger(TfsWriteBehindQueue.class.getName());
+    private static final long FIRST_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final long LONGEST_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final int DEFAULT_MAXIMUM_ATTEMPTS = 10;
+    private static final long DEFAULT_LONGEST_HOLD_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final TfsConnection connection;
+    private final TfsCheckinJournal journal;
+    private final long coalesceWindowMillis;
+    private final long longestHoldMillis;
+    private final long firstRetryMillis;
+    private final int maximumAttempts;
+    private final ScheduledExecutorService worker;
+    private final Map<File, TfsPendingOperation> pendingOperations = new LinkedHashMap<File, TfsPendingOperation>();
+    private final Map<File, Retry> retries = new HashMap<File, Retry>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AtomicBoolean waitingForConnection = new AtomicBoolean();
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public TfsWriteBehindQueue(TfsConnection connection, TfsCheckinJournal journal, long coalesceWindowMillis) throws IOException {
+        this(connection, journal, coalesceWindowMillis, DEFAULT_LONGEST_HOLD_MILLIS);
+    }
+
+    /**
+     * @param longestHoldMillis how long a file saved again and again within the coalescing window is held back at most,
+     * from when it was first queued.
+     */
+    public TfsWriteBehindQueue(TfsConnection connection, TfsCheckinJournal journal, long coalesceWindowMillis,
+                               long longestHoldMillis) throws IOException {
+        this(connection, journal, coalesceWindowMillis, longestHoldMillis, FIRST_RETRY_MILLIS, DEFAULT_MAXIMUM_ATTEMPTS);
+    }
+
+    /**
+     * @param firstRetryMillis how long a file whose check-in failed waits before it is tried again, doubling with each
+     * further failure.
+     * @param maximumAttempts how many times a file is tried before it is parked.
+     */
+    public TfsWriteBehindQueue(TfsConnection connection, TfsCheckinJournal journal, long coalesceWindowMillis,
+                               long longestHoldMillis, long firstRetryMillis, int maximumAttempts) throws IOException {
+        this.connection = connection;
+        this.journal = journal;
+        this.coalesceWindowMillis = coalesceWindowMillis;
+        this.longestHoldMillis = longestHoldMillis;
+        this.firstRetryMillis = firstRetryMillis;
+        this.maximumAttempts = maximumAttempts;
+        for (TfsPendingOperation operation : journal.read()) {
+            queue(operation);
+        }
+
+        worker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tfs-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        drainOnceConnected();
+    }
+
+    public void save(File... files) throws IOException {
+        add(TfsPendingOperation.Type.SAVE, files);
+    }
+
+    public void delete(File... files) throws IOException {
+        add(TfsPendingOperation.Type.DELETE, files);
+    }
+
+    /**
+     * @return true if the file has a save or delete that hasn't been sent to TFS yet, in which case the local copy is
+     * newer than the server's.
+     */
+    public synchronized boolean isPending(File file) {
+        return pendingOperations.containsKey(file.getAbsoluteFile());
+    }
+
+    public synchronized int getQueueDepth() {
+        return pendingOperations.size();
+    }
+
+    /**
+     * @return how many queued files are still being sent, leaving out parked ones.
+     */
+    public synchronized int getLiveQueueDepth() {
+        return pendingOperations.size() - getParkedCount();
+    }
+
+    /**
+     * @return how many queued files have failed too often to be tried again before they are next changed.
+     */
+    public synchronized int getParkedCount() {
+        int parked = 0;
+        for (Retry retry : retries.values()) {
+            if (retry.parked) parked++;
+        }
+        return parked;
+    }
+
+    /**
+     * Stops sending.  Whatever is still queued stays in the journal for the next start.
+     */
+    public void close() {
+        worker.shutdownNow();
+    }
+
+    /**
+     * @return how long the oldest queued operation has been waiting, or 0 if the queue is empty.
+     */
+    public synchronized long getLagMillis() {
+        long oldest = Long.MAX_VALUE;
+        for (TfsPendingOperation operation : pendingOperations.values()) {
+            oldest = Math.min(oldest, operation.getFirstQueuedMillis());
+        }
+        return pendingOperations.isEmpty() ? 0 : System.currentTimeMillis() - oldest;
+    }
+
+    private void add(TfsPendingOperation.Type type, File... files) throws IOException {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (File file : files) {
+                TfsPendingOperation operation = new TfsPendingOperation(type, file, now);
+                journal.append(operation);
+                queue(operation);
+            }
+        }
+        scheduleDrain(Math.min(coalesceWindowMillis, longestHoldMillis));
+    }
+
+    /**
+     * Schedules a drain unless one is already waiting to run, which reschedules itself for anything not ready yet.
+     */
+    private void scheduleDrain(long delayMillis) {
+        if (drainScheduled.compareAndSet(false, true))
+            worker.schedule(drainTask, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drains the queue when the connection is made, or made again after it was lost.
+     */
+    private void drainOnceConnected() {
+        if (!waitingForConnection.compareAndSet(false, true)) return;
+        connection.whenConnected(new Runnable() {
+            @Override
+            public void run() {
+                waitingForConnection.set(false);
+                scheduleDrain(0);
+            }
+        });
+    }
+
+    private synchronized void queue(TfsPendingOperation operation) {
+        TfsPendingOperation earlier = pendingOperations.remove(operation.getFile());
+        pendingOperations.put(operation.getFile(), operation.coalesce(earlier));
+        retries.remove(operation.getFile());
+    }
+
+    private void drain() {
+        drainScheduled.set(false);
+        if (!connection.isConnected()) {
+            drainOnceConnected();
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        List<TfsPendingOperation> ready = new ArrayList<TfsPendingOperation>();
+        List<TfsPendingOperation> retrying = new ArrayList<TfsPendingOperation>();
+        long nextReadyMillis = Long.MAX_VALUE;
+        synchronized (this) {
+            for (TfsPendingOperation operation : pendingOperations.values()) {
+                Retry retry = retries.get(operation.getFile());
+                long readyMillis = retry == null ? getReadyMillis(operation) : retry.retryMillis;
+                if (retry != null && retry.parked) continue;
+                if (readyMillis > now) {
+                    nextReadyMillis = Math.min(nextReadyMillis, readyMillis);
+                } else if (retry == null) {
+                    ready.add(operation);
+                } else {
+                    retrying.add(operation);
+                }
+            }
+        }
+
+        if (!ready.isEmpty()) {
+            try {
+                send(ready);
+            } catch (RuntimeException e) {
+                if (connection.failed(e)) {
+                    drainOnceConnected();
+                    return;
+                }
+                LOG.warning(String.format("Could not send queued changes to TFS, will retry each file on its own: %s", e.getMessage()));
+                for (TfsPendingOperation operation : ready) {
+                    nextReadyMillis = Math.min(nextReadyMillis, failed(operation, e));
+                }
+            }
+        }
+        for (TfsPendingOperation operation : retrying) {
+            try {
+                send(Collections.singletonList(operation));
+            } catch (RuntimeException e) {
+                if (connection.failed(e)) {
+                    drainOnceConnected();
+                    return;
+                }
+                nextReadyMillis = Math.min(nextReadyMillis, failed(operation, e));
+            }
+        }
+
+        if (nextReadyMillis != Long.MAX_VALUE) {
+            scheduleDrain(Math.max(0, nextReadyMillis - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * @return when the file has gone unchanged for the coalescing window, or has been held for the longest hold time.
+     */
+    private long getReadyMillis(TfsPendingOperation operation) {
+        return Math.min(operation.getQueuedMillis() + coalesceWindowMillis, operation.getFirstQueuedMillis() + longestHoldMillis);
+    }
+
+    /**
+     * Checks the operations in, except saves of files someone else has checked in since they were last read, which
+     * are parked instead of overwriting the other change.
+     */
+    private void send(List<TfsPendingOperation> operations) {
+        TfsBackend backend = connection.get();
+        Set<File> conflicts = new HashSet<File>();
+        List<File> savedFiles = new ArrayList<File>();
+        for (TfsPendingOperation operation : operations) {
+            if (operation.getType() == TfsPendingOperation.Type.SAVE) savedFiles.add(operation.getFile());
+        }
+        if (!savedFiles.isEmpty()) {
+            for (File conflict : backend.findConflicts(savedFiles.toArray(new File[savedFiles.size()]))) {
+                conflicts.add(conflict.getAbsoluteFile());
+            }
+        }
+
+        List<TfsPendingOperation> sent = new ArrayList<TfsPendingOperation>();
+        savedFiles.clear();
+        List<File> deletedFiles = new ArrayList<File>();
+        for (TfsPendingOperation operation : operations) {
+            if (operation.getType() != TfsPendingOperation.Type.SAVE) {
+                deletedFiles.add(operation.getFile());
+            } else if (conflicts.contains(operation.getFile().getAbsoluteFile())) {
+                park(operation, String.format("Did not send %s to TFS because someone else has checked it in since it was last read; the local copy is kept until it is merged with the server's version",
+                        operation.getFile()));
+                continue;
+            } else {
+                savedFiles.add(operation.getFile());
+            }
+            sent.add(operation);
+        }
+        if (sent.isEmpty()) return;
+
+        TfsCheckinResult result = backend.checkin(describe(sent), savedFiles.toArray(new File[savedFiles.size()]), deletedFiles.toArray(new File[deletedFiles.size()]));
+        TfsFileVersionController.report(result);
+        remove(sent);
+    }
+
+    /**
+     * Counts a failed attempt at sending the operation, parking it once it has failed too often.
+     *
+     * @return when it is to be tried again, or {@link Long#MAX_VALUE} if it won't be.
+     */
+    private long failed(TfsPendingOperation operation, RuntimeException e) {
+        int attempts;
+        synchronized (this) {
+            if (pendingOperations.get(operation.getFile()) != operation) return Long.MAX_VALUE;
+            Retry retry = getRetry(operation);
+            retry.attempts++;
+            if (retry.attempts < maximumAttempts) {
+                long delayMillis = Math.min(LONGEST_RETRY_MILLIS, firstRetryMillis << Math.min(retry.attempts - 1, 16));
+                retry.retryMillis = System.currentTimeMillis() + delayMillis;
+                if (retry.attempts > 1) {
+                    LOG.warning(String.format("Could not send %s to TFS, will retry in %d seconds: %s",
+                            operation.getFile(), TimeUnit.MILLISECONDS.toSeconds(delayMillis), e.getMessage()));
+                }
+                return retry.retryMillis;
+            }
+            attempts = retry.attempts;
+        }
+        park(operation, String.format("Gave up sending %s to TFS after %d attempts; it is tried again when it next changes or after a restart: %s",
+                operation.getFile(), attempts, e.getMessage()));
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Stops trying to send the operation until its file is next saved or deleted, reporting why as a non-fatal error.
+     */
+    private void park(TfsPendingOperation operation, String message) {
+        synchronized (this) {
+            if (pendingOperations.get(operation.getFile()) != operation) return;
+            if (connection.isConnected()) connection.get().getNonFatalErrorRouter().onNonFatalError(message);
+            getRetry(operation).parked = true;
+        }
+        LOG.severe(message);
+    }
+
+    private Retry getRetry(TfsPendingOperation operation) {
+        Retry retry = retries.get(operation.getFile());
+        if (retry == null) {
+            retry = new Retry();
+            retries.put(operation.getFile(), retry);
+        }
+        return retry;
+    }
+
+    /**
+     * Removes operations that have been sent, keeping any newer operation queued on the same file in the meantime.
+     */
+    private synchronized void remove(List<TfsPendingOperation> sent) {
+        for (TfsPendingOperation operation : sent) {
+            if (pendingOperations.get(operation.getFile()) != operation) continue;
+            pendingOperations.remove(operation.getFile());
+            retries.remove(operation.getFile());
+        }
+        try {
+            journal.rewrite(pendingOperations.values());
+        } catch (IOException e) {
+            LOG.warning("Could not rewrite the TFS check-in journal, sent changes may be sent again after a restart: " + e.getMessage());
+        }
+    }
+
+    private static String describe(List<TfsPendingOperation> operations) {
+        StringBuilder saves = new StringBuilder();
+        StringBuilder deletes = new StringBuilder();
+        for (TfsPendingOperation operation : operations) {
+            StringBuilder description = operation.getType() == TfsPendingOperation.Type.SAVE ? saves : deletes;
+            if (description.length() > 0) description.append(", ");
+            description.append(operation.getFile().getPath());
+            if (description == saves && operation.getSaveCount() > 1) description.append(String.format(" (%d saves)", operation.getSaveCount()));
+        }
+
+        if (deletes.length() == 0) return "Saving " + saves;
+        if (saves.length() == 0) return "Deleting " + deletes;
+        return "Saving " + saves + "; Deleting " + deletes;
+    }
+
+    /**
+     * The failed attempts at sending a file's latest operation.
+     */
+    private static class Retry {
+        private int attempts;
+        private long retryMillis;
+        private boolean parked;
+    }
+}
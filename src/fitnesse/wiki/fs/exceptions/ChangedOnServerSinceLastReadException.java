@@ -0,0 +1,18 @@
+package fitnesse.wiki.fs.exceptions;
+
+import java.io.File;
+import java.util.List;
+
+public class ChangedOnServerSinceLastReadException extends RuntimeException {
+    public ChangedOnServerSinceLastReadException(List<File> files) {
+        super(createMessage(files));
+    }
+
+    private static String createMessage(List<File> files) {
+        String message = "Someone else has checked in a newer version of the following files since they were last read, so they have not been saved:";
+        for (File file : files) {
+            message += file.getPath() + " ";
+        }
+        return message;
+    }
+}
@@ -0,0 +1,11 @@
+package fitnesse.wiki.fs.exceptions;
+
+public class TfsNotConnectedException extends RuntimeException {
+    public TfsNotConnectedException(String tfsServerUri) {
+        super(createMessage(tfsServerUri));
+    }
+
+    private static String createMessage(String tfsServerUri) {
+        return "Not connected to TFS at " + tfsServerUri + " yet.";
+    }
+}
@@ -0,0 +1,10 @@
+package fitnesse.wiki.fs.exceptions;
+
+/**
+ * TFS refused to pend or check in a change, for example because the local workspace information was out of date.
+ */
+public class TfsVersionControlException extends RuntimeException {
+    public TfsVersionControlException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
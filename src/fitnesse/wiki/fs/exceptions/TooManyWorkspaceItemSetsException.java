@@ -1,16 +1,16 @@
 package fitnesse.wiki.fs.exceptions;
 
-import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.WorkspaceItemSet;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.ItemSet;
 
 public class TooManyWorkspaceItemSetsException extends RuntimeException {
-    public TooManyWorkspaceItemSetsException(WorkspaceItemSet[] workspaceItemSets) {
-        super(createMessage(workspaceItemSets));
+    public TooManyWorkspaceItemSetsException(ItemSet[] itemSets) {
+        super(createMessage(itemSets));
     }
 
-    private static String createMessage(WorkspaceItemSet[] workspaceItemSets) {
+    private static String createMessage(ItemSet[] itemSets) {
         String message = "Found the server path mapping, but calling getItems returned the following items:";
-        for(WorkspaceItemSet workspaceItemSet : workspaceItemSets){
-            message += workspaceItemSet.getQueryPath()+" ";
+        for(ItemSet itemSet : itemSets){
+            message += itemSet.getQueryPath()+" ";
         }
         return message;
     }
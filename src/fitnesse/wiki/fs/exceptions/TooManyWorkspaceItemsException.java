@@ -1,17 +1,17 @@
 package fitnesse.wiki.fs.exceptions;
 
-import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.WorkspaceItem;
-import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.WorkspaceItemSet;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.Item;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.ItemSet;
 
 public class TooManyWorkspaceItemsException extends RuntimeException {
-    public TooManyWorkspaceItemsException(WorkspaceItemSet workspaceItemSet, WorkspaceItem[] workspaceItems) {
-        super(createMessage(workspaceItemSet, workspaceItems));
+    public TooManyWorkspaceItemsException(ItemSet itemSet, Item[] items) {
+        super(createMessage(itemSet, items));
     }
 
-    private static String createMessage(WorkspaceItemSet workspaceItemSet, WorkspaceItem[] workspaceItems) {
-        String message = "Found the workspace item set, but calling getItems returned the following items:";
-        for(WorkspaceItem workspaceItem : workspaceItems){
-            message += workspaceItem.getDownloadURL()+" ";
+    private static String createMessage(ItemSet itemSet, Item[] items) {
+        String message = "Found the item set for " + itemSet.getQueryPath() + ", but calling getItems returned the following items:";
+        for(Item item : items){
+            message += item.getServerItem()+" ";
         }
         return message;
     }
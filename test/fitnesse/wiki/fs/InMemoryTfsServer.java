@@ -0,0 +1,630 @@
+package fitnesse.wiki.fs;
+
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.RecursionType;
+import fitnesse.wiki.fs.exceptions.TfsVersionControlException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A TFS server kept in memory, standing in for the SDK calls under {@link TfsWrapper} so that the wrapper's own
+ * caching, batching, locking and conflict checks run without a server.  It starts with one workspace mapping a local
+ * folder to a server folder, and more can be added.  Every call sleeps for the configured network delay first, so
+ * tests and benchmarks can see how many round trips are made.
+ * <p>
+ * As in TFS, pending an add also pends adds of the folders above it that aren't on the server yet, a check-in that
+ * adds an item without the folder it is in is refused, and edits that leave a file as it was are dropped at check-in
+ * rather than making a new revision.
+ */
+public class InMemoryTfsServer implements TfsVersionControl {
+    public static final String OWNER = "DOMAIN\\fitnesse";
+    public static final String COMPUTER = "FITNESSE-HOST";
+
+    private final long delayMillis;
+    private final Map<String, List<Revision>> revisionsByServerPath = new HashMap<String, List<Revision>>();
+    private final Map<String, String> serverPathsByKey = new HashMap<String, String>();
+    private final List<Changeset> changesets = new ArrayList<Changeset>();
+    private final List<Workspace> workspaces = new ArrayList<Workspace>();
+    private final AtomicInteger calls = new AtomicInteger();
+    private final Set<String> lockedKeys = new HashSet<String>();
+    private boolean returningAllPendingChanges;
+    private int retainedRevisions = Integer.MAX_VALUE;
+    private volatile boolean unreachable;
+    private boolean closed;
+
+    public InMemoryTfsServer(File localFolder, String serverFolder, long delayMillis) {
+        this.delayMillis = delayMillis;
+        changesets.add(new Changeset(0, "", "", 0));
+        addWorkspace("FitnesseWorkspace", OWNER, COMPUTER, localFolder, serverFolder);
+    }
+
+    /**
+     * Adds a workspace mapping the local folder to the server folder, creating the server folder if it isn't there.
+     * Only workspaces owned by {@value #OWNER} on {@value #COMPUTER} are local.
+     */
+    public synchronized TfsWorkspace addWorkspace(String name, String owner, String computer, File localFolder, String serverFolder) {
+        if (getLatest(serverFolder) == null) {
+            List<Revision> revisions = new ArrayList<Revision>();
+            revisions.add(new Revision(changesets.get(0), null, true));
+            revisionsByServerPath.put(toKey(serverFolder), revisions);
+            serverPathsByKey.put(toKey(serverFolder), serverFolder);
+        }
+        Workspace workspace = new Workspace(name, owner, computer, localFolder, serverFolder);
+        workspaces.add(workspace);
+        return workspace;
+    }
+
+    /**
+     * Makes every query for pending changes return all the changes pending in the workspace, whatever paths it asks
+     * for, so only the caller keeping other changes out of the workspace stops them being checked in.
+     */
+    public synchronized void setReturningAllPendingChanges(boolean returningAllPendingChanges) {
+        this.returningAllPendingChanges = returningAllPendingChanges;
+    }
+
+    /**
+     * Sets how many of each path's newest revisions keep their content, so long benchmark runs don't fill the heap.
+     * Older revisions can no longer be downloaded.
+     */
+    public synchronized void setRetainedRevisions(int retainedRevisions) {
+        this.retainedRevisions = retainedRevisions;
+    }
+
+    /**
+     * Makes every call fail as it would if the server couldn't be reached.
+     */
+    public void setUnreachable(boolean unreachable) {
+        this.unreachable = unreachable;
+    }
+
+    /**
+     * Makes every check-in that includes the path fail, as it would if someone else had locked it.
+     */
+    public synchronized void setLocked(String serverPath, boolean locked) {
+        if (locked) {
+            lockedKeys.add(toKey(serverPath));
+        } else {
+            lockedKeys.remove(toKey(serverPath));
+        }
+    }
+
+    @Override
+    public List<TfsWorkspace> getWorkspaces() {
+        roundTrip();
+        synchronized (this) {
+            return new ArrayList<TfsWorkspace>(workspaces);
+        }
+    }
+
+    @Override
+    public void refreshWorkspaceInfo(String owner) {
+        roundTrip();
+    }
+
+    @Override
+    public TfsItem getItem(String serverPath, int changesetId) {
+        roundTrip();
+        synchronized (this) {
+            Revision revision = getRevisionAt(serverPath, changesetId);
+            return revision == null || revision.isDeleted() ? null : toItem(serverPathsByKey.get(toKey(serverPath)), revision);
+        }
+    }
+
+    @Override
+    public TfsItem[][] getItems(String[] serverPaths, RecursionType recursion, boolean generateDownloadUrls) {
+        roundTrip();
+        TfsItem[][] items = new TfsItem[serverPaths.length][];
+        synchronized (this) {
+            for (int i = 0; i < serverPaths.length; i++) {
+                List<String> keys = findLatest(serverPaths[i], recursion);
+                items[i] = new TfsItem[keys.size()];
+                for (int j = 0; j < keys.size(); j++) {
+                    items[i][j] = toItem(serverPathsByKey.get(keys.get(j)), getLatest(keys.get(j)));
+                }
+            }
+        }
+        return items;
+    }
+
+    @Override
+    public void download(TfsItem item, File file) throws IOException {
+        roundTrip();
+        byte[] content;
+        synchronized (this) {
+            Revision revision = getRevisionAt(item.getServerItem(), item.getChangesetId());
+            if (revision == null || revision.content == null) throw new IOException(item.getServerItem() + " has no content to download");
+            content = revision.content;
+        }
+        Files.write(file.toPath(), content);
+    }
+
+    @Override
+    public List<TfsHistoryEntry> queryHistory(String serverPath, int fromChangesetId) {
+        roundTrip();
+        List<TfsHistoryEntry> history = new ArrayList<TfsHistoryEntry>();
+        synchronized (this) {
+            if (fromChangesetId > changesets.get(changesets.size() - 1).id)
+                throw new TfsVersionControlException(String.format("TF14019: The changeset %d does not exist.", fromChangesetId), null);
+            List<Revision> revisions = revisionsByServerPath.get(toKey(serverPath));
+            if (revisions == null) return history;
+            for (int i = revisions.size() - 1; i >= 0; i--) {
+                Changeset changeset = revisions.get(i).changeset;
+                if (changeset.id < fromChangesetId || changeset.id == 0) break;
+                history.add(new TfsHistoryEntry(changeset.id, changeset.owner, changeset.comment, changeset.dateMillis));
+            }
+        }
+        return history;
+    }
+
+    @Override
+    public Set<String> queryChangedPaths(String serverFolder, int fromChangesetId, int toChangesetId) {
+        roundTrip();
+        Set<String> changedPaths = new LinkedHashSet<String>();
+        synchronized (this) {
+            for (Changeset changeset : changesets) {
+                if (changeset.id < fromChangesetId || changeset.id > toChangesetId) continue;
+                for (String serverPath : changeset.serverPaths) {
+                    if (isUnder(toKey(serverPath), toKey(serverFolder), true)) changedPaths.add(serverPath);
+                }
+            }
+        }
+        return changedPaths;
+    }
+
+    @Override
+    public synchronized int getLatestChangesetId() {
+        roundTrip();
+        return changesets.size() - 1;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Checks a change in as someone else would, straight to the server.
+     *
+     * @return the new changeset.
+     */
+    public synchronized int checkinAsSomeoneElse(String serverPath, String content) {
+        Changeset changeset = newChangeset("DOMAIN\\someoneelse", "Changed on the server");
+        addRevision(serverPath, new Revision(changeset, content.getBytes(StandardCharsets.UTF_8), false));
+        return changeset.id;
+    }
+
+    /**
+     * @return the latest content of the server path, or null if it isn't on the server.
+     */
+    public synchronized String getLatestContent(String serverPath) {
+        Revision latest = getLatest(serverPath);
+        return latest == null || latest.content == null ? null : new String(latest.content, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the server paths changed in the changeset.
+     */
+    public synchronized List<String> getChangedPaths(int changesetId) {
+        return new ArrayList<String>(changesets.get(changesetId).serverPaths);
+    }
+
+    /**
+     * @return how many calls have been made to the server.
+     */
+    public int getCalls() {
+        return calls.get();
+    }
+
+    private Changeset newChangeset(String owner, String comment) {
+        Changeset changeset = new Changeset(changesets.size(), owner, comment, System.currentTimeMillis());
+        changesets.add(changeset);
+        return changeset;
+    }
+
+    private void addRevision(String serverPath, Revision revision) {
+        String key = toKey(serverPath);
+        String parentPath = getParent(serverPath);
+        if (parentPath != null && !revision.isDeleted() && getLatest(parentPath) == null) {
+            addRevision(parentPath, new Revision(revision.changeset, null, true));
+        }
+        List<Revision> revisions = revisionsByServerPath.get(key);
+        if (revisions == null) {
+            revisions = new ArrayList<Revision>();
+            revisionsByServerPath.put(key, revisions);
+        }
+        serverPathsByKey.put(key, serverPath);
+        revisions.add(revision);
+        revision.changeset.serverPaths.add(serverPath);
+
+        int revisionsWithContent = 0;
+        for (int i = revisions.size() - 1; i >= 0; i--) {
+            if (revisions.get(i).content != null && ++revisionsWithContent > retainedRevisions) revisions.get(i).content = null;
+        }
+    }
+
+    /**
+     * @return the latest revision of the path, or null if it isn't on the server.
+     */
+    private Revision getLatest(String serverPath) {
+        List<Revision> revisions = revisionsByServerPath.get(toKey(serverPath));
+        if (revisions == null || revisions.isEmpty()) return null;
+        Revision latest = revisions.get(revisions.size() - 1);
+        return latest.isDeleted() ? null : latest;
+    }
+
+    private Revision getRevisionAt(String serverPath, int changesetId) {
+        Revision found = null;
+        List<Revision> revisions = revisionsByServerPath.get(toKey(serverPath));
+        if (revisions == null) return null;
+        for (Revision revision : revisions) {
+            if (revision.changeset.id <= changesetId) found = revision;
+        }
+        return found;
+    }
+
+    /**
+     * @return the keys of the paths on the server at or under the folder, with the given recursion.
+     */
+    private List<String> findLatest(String serverPath, RecursionType recursion) {
+        String folderKey = toKey(serverPath);
+        List<String> keys = new ArrayList<String>();
+        for (String key : revisionsByServerPath.keySet()) {
+            boolean matches = key.equals(folderKey)
+                    || recursion == RecursionType.FULL && isUnder(key, folderKey, false)
+                    || recursion == RecursionType.ONE_LEVEL && isUnder(key, folderKey, false) && key.indexOf('/', folderKey.length() + 1) < 0;
+            if (matches && getLatest(key) != null) keys.add(key);
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    private TfsItem toItem(String serverPath, Revision revision) {
+        return new TfsItem(serverPath, revision.changeset.id, revision.content == null ? null : TfsContentHashes.md5(revision.content), revision.folder);
+    }
+
+    private void roundTrip() {
+        calls.incrementAndGet();
+        if (unreachable) throw new TfsFileVersionControllerException("The TFS server can't be reached.");
+        if (delayMillis <= 0) return;
+        try {
+            TimeUnit.MILLISECONDS.sleep(delayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String getParent(String serverPath) {
+        int slash = serverPath.lastIndexOf('/');
+        return slash <= 1 ? null : serverPath.substring(0, slash);
+    }
+
+    private static boolean isUnder(String key, String folderKey, boolean orSame) {
+        return orSame && key.equals(folderKey) || key.startsWith(folderKey + "/");
+    }
+
+    private static String toKey(String serverPath) {
+        return serverPath.toLowerCase(Locale.ROOT);
+    }
+
+    private class Workspace implements TfsWorkspace {
+        private final String name;
+        private final String owner;
+        private final String computer;
+        private final String localFolder;
+        private final String serverFolder;
+        private final List<PendingChange> pendingChanges = new ArrayList<PendingChange>();
+
+        private Workspace(String name, String owner, String computer, File localFolder, String serverFolder) {
+            this.name = name;
+            this.owner = owner;
+            this.computer = computer;
+            this.localFolder = localFolder.getAbsoluteFile().toPath().normalize().toString();
+            this.serverFolder = serverFolder;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getOwnerName() {
+            return owner;
+        }
+
+        @Override
+        public String getComputer() {
+            return computer;
+        }
+
+        @Override
+        public boolean isLocal() {
+            return OWNER.equalsIgnoreCase(owner) && COMPUTER.equalsIgnoreCase(computer);
+        }
+
+        @Override
+        public List<TfsWorkingFolder> getFolders() {
+            return Collections.singletonList(new TfsWorkingFolder(serverFolder, localFolder, false));
+        }
+
+        @Override
+        public String getMappedServerPath(String localPath) {
+            String path = new File(localPath).getAbsoluteFile().toPath().normalize().toString();
+            if (!path.equals(localFolder) && !path.startsWith(localFolder + File.separator)) return null;
+            return serverFolder + path.substring(localFolder.length()).replace(File.separatorChar, '/');
+        }
+
+        @Override
+        public String getMappedLocalPath(String serverPath) {
+            if (!isUnder(toKey(serverPath), toKey(serverFolder), true)) return null;
+            return localFolder + serverPath.substring(serverFolder.length()).replace('/', File.separatorChar);
+        }
+
+        @Override
+        public void pendEdit(String[] localPaths) {
+            roundTrip();
+            synchronized (InMemoryTfsServer.this) {
+                for (String localPath : localPaths) {
+                    String serverPath = getServerPathOnServer(localPath);
+                    pend(new PendingChange(ChangeType.EDIT, serverPath, null, localPath, false));
+                }
+            }
+        }
+
+        @Override
+        public void pendAdd(String[] localPaths, boolean recursive) {
+            roundTrip();
+            synchronized (InMemoryTfsServer.this) {
+                for (String localPath : localPaths) {
+                    pendAdd(new File(localPath), recursive);
+                }
+            }
+        }
+
+        private void pendAdd(File file, boolean recursive) {
+            String serverPath = getMappedServerPath(file.getPath());
+            if (serverPath == null) throw new TfsVersionControlException(file + " is not mapped in " + name, null);
+            File parent = file.getAbsoluteFile().getParentFile();
+            String parentServerPath = getParent(serverPath);
+            if (parentServerPath != null && getLatest(parentServerPath) == null && findPending(parentServerPath) == null)
+                pendAdd(parent, false);
+            if (getLatest(serverPath) == null && findPending(serverPath) == null)
+                pend(new PendingChange(ChangeType.ADD, serverPath, null, file.getPath(), file.isDirectory()));
+
+            File[] children = recursive ? file.listFiles() : null;
+            if (children == null) return;
+            for (File child : children) {
+                pendAdd(child, true);
+            }
+        }
+
+        @Override
+        public void pendDelete(String[] localPaths) {
+            roundTrip();
+            synchronized (InMemoryTfsServer.this) {
+                for (String localPath : localPaths) {
+                    String serverPath = getServerPathOnServer(localPath);
+                    pend(new PendingChange(ChangeType.DELETE, serverPath, null, localPath, getLatest(serverPath).folder));
+                }
+            }
+        }
+
+        @Override
+        public void pendRename(String localPath, String renamedLocalPath) {
+            roundTrip();
+            synchronized (InMemoryTfsServer.this) {
+                String serverPath = getServerPathOnServer(localPath);
+                String renamedServerPath = getMappedServerPath(renamedLocalPath);
+                if (renamedServerPath == null) throw new TfsVersionControlException(renamedLocalPath + " is not mapped in " + name, null);
+                try {
+                    File renamedFile = new File(renamedLocalPath);
+                    File parent = renamedFile.getAbsoluteFile().getParentFile();
+                    if (!parent.isDirectory() && !parent.mkdirs()) throw new IOException("Could not create " + parent);
+                    Files.move(new File(localPath).toPath(), renamedFile.toPath());
+                } catch (IOException e) {
+                    throw new TfsVersionControlException("Could not rename " + localPath + ": " + e.getMessage(), e);
+                }
+                pend(new PendingChange(ChangeType.RENAME, renamedServerPath, serverPath, renamedLocalPath, getLatest(serverPath).folder));
+            }
+        }
+
+        @Override
+        public TfsPendingChange[] getPendingChanges(String[] serverPaths, RecursionType recursion) {
+            roundTrip();
+            List<PendingChange> found = new ArrayList<PendingChange>();
+            synchronized (InMemoryTfsServer.this) {
+                for (PendingChange pendingChange : pendingChanges) {
+                    if (returningAllPendingChanges || matchesAny(pendingChange.getServerItem(), serverPaths, recursion)) found.add(pendingChange);
+                }
+            }
+            return found.toArray(new TfsPendingChange[found.size()]);
+        }
+
+        @Override
+        public int checkIn(TfsPendingChange[] changes, String comment) {
+            roundTrip();
+            synchronized (InMemoryTfsServer.this) {
+                Set<String> addedKeys = new LinkedHashSet<String>();
+                for (TfsPendingChange change : changes) {
+                    if (!pendingChanges.contains(change)) throw new TfsVersionControlException(change.getServerItem() + " is not pending in " + name, null);
+                    if (lockedKeys.contains(toKey(change.getServerItem()))) throw new TfsVersionControlException(change.getServerItem() + " is locked by someone else", null);
+                    if (((PendingChange) change).type == ChangeType.ADD) addedKeys.add(toKey(change.getServerItem()));
+                }
+                for (TfsPendingChange change : changes) {
+                    String parentPath = getParent(change.getServerItem());
+                    if (((PendingChange) change).type == ChangeType.ADD && parentPath != null && getLatest(parentPath) == null && !addedKeys.contains(toKey(parentPath)))
+                        throw new TfsVersionControlException(change.getServerItem() + " can't be added without the folder it is in", null);
+                }
+                List<PendingChange> changed = new ArrayList<PendingChange>();
+                for (TfsPendingChange change : changes) {
+                    PendingChange pendingChange = (PendingChange) change;
+                    pendingChanges.remove(pendingChange);
+                    if (pendingChange.type != ChangeType.EDIT || !Arrays.equals(read(pendingChange.localPath), getLatest(change.getServerItem()).content))
+                        changed.add(pendingChange);
+                }
+                if (changed.isEmpty()) return 0;
+
+                Changeset changeset = newChangeset(owner, comment);
+                for (PendingChange change : changed) {
+                    commit(change, changeset);
+                }
+                return changeset.id;
+            }
+        }
+
+        @Override
+        public void get(String[] serverPaths) {
+            roundTrip();
+            synchronized (InMemoryTfsServer.this) {
+                for (String serverPath : serverPaths) {
+                    Revision latest = getLatest(serverPath);
+                    String localPath = getMappedLocalPath(serverPath);
+                    if (latest == null || latest.content == null || localPath == null) continue;
+                    try {
+                        Files.createDirectories(new File(localPath).getAbsoluteFile().getParentFile().toPath());
+                        Files.write(new File(localPath).toPath(), latest.content);
+                    } catch (IOException e) {
+                        throw new TfsVersionControlException("Could not get " + serverPath + ": " + e.getMessage(), e);
+                    }
+                }
+            }
+        }
+
+        private void commit(PendingChange change, Changeset changeset) {
+            switch (change.type) {
+                case ADD:
+                case EDIT:
+                    addRevision(change.getServerItem(), new Revision(changeset, change.folder ? null : read(change.localPath), change.folder));
+                    break;
+                case DELETE:
+                    for (String key : findLatest(change.getServerItem(), RecursionType.FULL)) {
+                        addRevision(serverPathsByKey.get(key), new Revision(changeset, null, getLatest(key).folder, true));
+                    }
+                    break;
+                case RENAME:
+                    String sourceKey = toKey(change.sourceServerItem);
+                    for (String key : findLatest(change.sourceServerItem, RecursionType.FULL)) {
+                        Revision latest = getLatest(key);
+                        String renamedPath = change.getServerItem() + serverPathsByKey.get(key).substring(sourceKey.length());
+                        revisionsByServerPath.put(toKey(renamedPath), new ArrayList<Revision>(revisionsByServerPath.get(key)));
+                        addRevision(renamedPath, new Revision(changeset, latest.content, latest.folder));
+                        addRevision(serverPathsByKey.get(key), new Revision(changeset, null, latest.folder, true));
+                    }
+                    break;
+            }
+        }
+
+        private void pend(PendingChange change) {
+            PendingChange existing = findPending(change.getServerItem());
+            if (existing != null && existing.type != ChangeType.EDIT) return;
+            if (existing != null) pendingChanges.remove(existing);
+            pendingChanges.add(change);
+        }
+
+        private PendingChange findPending(String serverPath) {
+            for (PendingChange pendingChange : pendingChanges) {
+                if (toKey(pendingChange.getServerItem()).equals(toKey(serverPath))) return pendingChange;
+            }
+            return null;
+        }
+
+        private String getServerPathOnServer(String localPath) {
+            String serverPath = getMappedServerPath(localPath);
+            if (serverPath == null || getLatest(serverPath) == null)
+                throw new TfsVersionControlException(localPath + " is not on the server", null);
+            return serverPath;
+        }
+
+        private byte[] read(String localPath) {
+            try {
+                return Files.readAllBytes(new File(localPath).toPath());
+            } catch (IOException e) {
+                throw new TfsVersionControlException("Could not read " + localPath + ": " + e.getMessage(), e);
+            }
+        }
+
+        private boolean matchesAny(String serverPath, String[] serverPaths, RecursionType recursion) {
+            String key = toKey(serverPath);
+            for (String path : serverPaths) {
+                String pathKey = toKey(path);
+                if (key.equals(pathKey)) return true;
+                if (recursion == RecursionType.FULL && isUnder(key, pathKey, false)) return true;
+                if (recursion == RecursionType.ONE_LEVEL && pathKey.equals(toKey(getParent(serverPath)))) return true;
+            }
+            return false;
+        }
+    }
+
+    private enum ChangeType {ADD, EDIT, DELETE, RENAME}
+
+    private static class PendingChange extends TfsPendingChange {
+        private final ChangeType type;
+        private final String sourceServerItem;
+        private final String localPath;
+        private final boolean folder;
+
+        private PendingChange(ChangeType type, String serverItem, String sourceServerItem, String localPath, boolean folder) {
+            super(serverItem);
+            this.type = type;
+            this.sourceServerItem = sourceServerItem;
+            this.localPath = localPath;
+            this.folder = folder;
+        }
+    }
+
+    private static class Changeset {
+        private final int id;
+        private final String owner;
+        private final String comment;
+        private final long dateMillis;
+        private final List<String> serverPaths = new ArrayList<String>();
+
+        private Changeset(int id, String owner, String comment, long dateMillis) {
+            this.id = id;
+            this.owner = owner;
+            this.comment = comment;
+            this.dateMillis = dateMillis;
+        }
+    }
+
+    private static class Revision {
+        private final Changeset changeset;
+        private byte[] content;
+        private final boolean folder;
+        private final boolean deleted;
+
+        private Revision(Changeset changeset, byte[] content, boolean folder) {
+            this(changeset, content, folder, false);
+        }
+
+        private Revision(Changeset changeset, byte[] content, boolean folder, boolean deleted) {
+            this.changeset = changeset;
+            this.content = content == null ? null : Arrays.copyOf(content, content.length);
+            this.folder = folder;
+            this.deleted = deleted;
+        }
+
+        private boolean isDeleted() {
+            return deleted;
+        }
+    }
+}
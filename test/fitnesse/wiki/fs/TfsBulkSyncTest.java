@@ -0,0 +1,111 @@
+package fitnesse.wiki.fs;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Properties;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class TfsBulkSyncTest {
+    public static final String SERVER_FOLDER = "$/FitnesseTfsTest/RooT";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File wikiRoot;
+    private InMemoryTfsServer server;
+    private TfsWrapper backend;
+    private TfsIgnoreFilter ignoreFilter;
+
+    @Before
+    public void initialise() throws IOException {
+        wikiRoot = temporaryFolder.newFolder("RooT");
+        server = new InMemoryTfsServer(wikiRoot, SERVER_FOLDER, 0);
+        Properties properties = new Properties();
+        properties.setProperty(TfsPropertiesHelper.DOWNLOAD_FOLDER_PROPERTY_KEY, temporaryFolder.newFolder("downloads").getPath());
+        backend = new TfsWrapper(properties, server, Collections.<TfsVersionControl>singletonList(server));
+        ignoreFilter = new TfsIgnoreFilter(Collections.singletonList("ErrorLogs"));
+    }
+
+    @Test
+    public void shouldCheckInAWholeTreeInBatches() throws IOException {
+        // Setup
+        for (int page = 0; page < 5; page++) {
+            write("Suite/Page" + page + "/content.txt", "Page " + page);
+        }
+        write("ErrorLogs/Suite/content.txt", "Error log");
+        TfsBulkSync bulkSync = new TfsBulkSync(backend, 2, ignoreFilter, new TfsMetrics());
+
+        // Execute
+        TfsCheckinResult result = bulkSync.sync(wikiRoot);
+
+        // Assert
+        assertThat(result.getChangesetIds(), hasSize(3));
+        assertThat(bulkSync.getChangesSent(), equalTo(5));
+        for (int page = 0; page < 5; page++) {
+            assertThat(server.getLatestContent(SERVER_FOLDER + "/Suite/Page" + page + "/content.txt"), equalTo("Page " + page));
+        }
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/ErrorLogs/Suite/content.txt"), nullValue());
+    }
+
+    @Test
+    public void shouldOnlySendWhatDiffersFromTheServerWhenRunAgain() throws IOException {
+        // Setup
+        write("Unchanged/content.txt", "Unchanged");
+        write("Changed/content.txt", "First version");
+        write("Deleted/content.txt", "Deleted");
+        new TfsBulkSync(backend, 100, ignoreFilter, new TfsMetrics()).sync(wikiRoot);
+        write("Changed/content.txt", "Second version");
+        assertTrue(new File(wikiRoot, "Deleted/content.txt").delete());
+        write("Added/content.txt", "Added");
+        TfsBulkSync bulkSync = new TfsBulkSync(backend, 100, ignoreFilter, new TfsMetrics());
+
+        // Execute
+        TfsCheckinResult result = bulkSync.sync(wikiRoot);
+
+        // Assert
+        assertThat(result.getChangesetIds(), hasSize(1));
+        assertThat(bulkSync.getChangesFound(), equalTo(3));
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/Changed/content.txt"), equalTo("Second version"));
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/Deleted/content.txt"), nullValue());
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/Added/content.txt"), equalTo("Added"));
+    }
+
+    @Test
+    public void shouldNotSyncAFolderAgainOnceTheMarkerRecordsItAsFinished() throws IOException {
+        // Setup
+        File marker = new File(temporaryFolder.getRoot(), "tfs-bulk-sync.done");
+        write("Kept/content.txt", "Kept");
+        write("MissingLocally/content.txt", "Missing locally");
+        TfsMetrics metrics = new TfsMetrics();
+        new TfsBulkSync(backend, 100, ignoreFilter, metrics).syncOnce(wikiRoot, marker);
+        assertTrue(new File(wikiRoot, "MissingLocally/content.txt").delete());
+
+        // Execute
+        TfsCheckinResult result = new TfsBulkSync(backend, 100, ignoreFilter, metrics).syncOnce(wikiRoot, marker);
+
+        // Assert
+        assertThat(result, nullValue());
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/MissingLocally/content.txt"), equalTo("Missing locally"));
+        assertThat(metrics.getBulkSyncChangesFound(), equalTo(2L));
+        assertThat(metrics.getBulkSyncChangesSent(), equalTo(2L));
+    }
+
+    private void write(String fileName, String content) throws IOException {
+        File file = new File(wikiRoot, fileName);
+        if (!file.getParentFile().isDirectory()) assertTrue(file.getParentFile().mkdirs());
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
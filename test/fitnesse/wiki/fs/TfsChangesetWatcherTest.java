@@ -0,0 +1,88 @@
+package fitnesse.wiki.fs;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class TfsChangesetWatcherTest {
+    public static final String SERVER_FOLDER = "$/FitnesseTfsTest/RooT";
+    public static final String CHANGED_PAGE = SERVER_FOLDER + "/ChangedPage/content.txt";
+    public static final String UNCHANGED_PAGE = SERVER_FOLDER + "/UnchangedPage/content.txt";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File wikiRoot;
+    private InMemoryTfsServer server;
+    private TfsMetrics metrics;
+
+    @Before
+    public void initialise() throws IOException {
+        wikiRoot = temporaryFolder.newFolder("RooT");
+        server = new InMemoryTfsServer(wikiRoot, SERVER_FOLDER, 0);
+        metrics = new TfsMetrics();
+    }
+
+    @Test
+    public void shouldInvalidateOnlyThePathsChangedSinceTheLastPoll() {
+        // Setup
+        server.checkinAsSomeoneElse(CHANGED_PAGE, "First version");
+        int unchangedChangesetId = server.checkinAsSomeoneElse(UNCHANGED_PAGE, "Unchanged");
+        TfsWorkspace workspace = server.getWorkspaces().get(0);
+        TfsItemMetadataCache itemMetadataCache = new TfsItemMetadataCache(60000, new TfsClientPool(Collections.<TfsVersionControl>singletonList(server)), metrics);
+        TfsChangesetWatcher watcher = new TfsChangesetWatcher(server, new TfsWorkspaceMappings(server, 0, metrics),
+                itemMetadataCache, 0, false, metrics);
+        itemMetadataCache.lookup(workspace, Arrays.asList(CHANGED_PAGE, UNCHANGED_PAGE));
+        watcher.poll();
+        server.checkinAsSomeoneElse(CHANGED_PAGE, "Second version");
+
+        // Execute
+        watcher.poll();
+
+        // Assert
+        Map<String, TfsItem> knownItems = itemMetadataCache.lookup(workspace, Arrays.asList(CHANGED_PAGE, UNCHANGED_PAGE));
+        assertFalse(knownItems.containsKey(CHANGED_PAGE));
+        assertThat(knownItems.get(UNCHANGED_PAGE).getChangesetId(), equalTo(unchangedChangesetId));
+    }
+
+    @Test
+    public void shouldAskAboutEachServerFolderOfThisComputersWorkspacesOnce() throws IOException {
+        // Setup
+        server.checkinAsSomeoneElse(CHANGED_PAGE, "First version");
+        server.addWorkspace("NestedWorkspace", InMemoryTfsServer.OWNER, InMemoryTfsServer.COMPUTER,
+                temporaryFolder.newFolder("Nested"), SERVER_FOLDER + "/ChangedPage");
+        File otherComputerFolder = temporaryFolder.newFolder("OtherComputer");
+        server.addWorkspace("OtherComputerWorkspace", InMemoryTfsServer.OWNER, "OTHER-HOST", otherComputerFolder, SERVER_FOLDER);
+        TfsChangesetWatcher watcher = new TfsChangesetWatcher(server, new TfsWorkspaceMappings(server, 0, metrics),
+                new TfsItemMetadataCache(60000, new TfsClientPool(Collections.<TfsVersionControl>singletonList(server)), metrics), 0, true, metrics);
+        watcher.poll();
+        server.checkinAsSomeoneElse(CHANGED_PAGE, "Second version");
+
+        // Execute
+        watcher.poll();
+
+        // Assert
+        assertThat(metrics.getCount(TfsMetrics.Operation.HISTORY_QUERY), equalTo(1L));
+        assertThat(read(new File(wikiRoot, "ChangedPage/content.txt")), equalTo("Second version"));
+        assertFalse(new File(otherComputerFolder, "ChangedPage/content.txt").exists());
+        assertTrue(new File(temporaryFolder.getRoot(), "Nested/content.txt").isFile());
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,104 @@
+package fitnesse.wiki.fs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assert.assertThat;
+
+public class TfsCheckinJournalTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldReadBackAppendedOperationsInOrder() throws IOException {
+        // Setup
+        TfsCheckinJournal journal = new TfsCheckinJournal(new File(temporaryFolder.getRoot(), "journal"));
+        File page = new File(temporaryFolder.getRoot(), "RooT/content.txt");
+
+        // Execute
+        journal.append(new TfsPendingOperation(TfsPendingOperation.Type.SAVE, page, 10));
+        journal.append(new TfsPendingOperation(TfsPendingOperation.Type.DELETE, page, 20));
+        List<TfsPendingOperation> operations = new TfsCheckinJournal(new File(temporaryFolder.getRoot(), "journal")).read();
+
+        // Assert
+        assertThat(operations, hasSize(2));
+        assertThat(operations.get(0).getType(), equalTo(TfsPendingOperation.Type.SAVE));
+        assertThat(operations.get(1).getType(), equalTo(TfsPendingOperation.Type.DELETE));
+        assertThat(operations.get(1).getFile(), equalTo(page.getAbsoluteFile()));
+        assertThat(operations.get(1).getQueuedMillis(), equalTo(20L));
+    }
+
+    @Test
+    public void shouldKeepWhenACoalescedOperationWasFirstQueuedAndItsSaveCount() throws IOException {
+        // Setup
+        TfsCheckinJournal journal = new TfsCheckinJournal(new File(temporaryFolder.getRoot(), "journal"));
+        TfsPendingOperation operation = new TfsPendingOperation(TfsPendingOperation.Type.SAVE, new File("content.txt"), 30, 10, 3);
+
+        // Execute
+        journal.rewrite(Collections.singletonList(operation));
+        List<TfsPendingOperation> operations = journal.read();
+
+        // Assert
+        assertThat(operations, hasSize(1));
+        assertThat(operations.get(0).getQueuedMillis(), equalTo(30L));
+        assertThat(operations.get(0).getFirstQueuedMillis(), equalTo(10L));
+        assertThat(operations.get(0).getSaveCount(), equalTo(3));
+    }
+
+    @Test
+    public void shouldReadLinesWrittenWithoutTheFirstQueuedTimeAndSaveCount() throws IOException {
+        // Setup
+        File journalFile = new File(temporaryFolder.getRoot(), "journal");
+        try (FileOutputStream output = new FileOutputStream(journalFile)) {
+            output.write("SAVE\t20\tcontent.txt\n".getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Execute
+        List<TfsPendingOperation> operations = new TfsCheckinJournal(journalFile).read();
+
+        // Assert
+        assertThat(operations, hasSize(1));
+        assertThat(operations.get(0).getFirstQueuedMillis(), equalTo(20L));
+        assertThat(operations.get(0).getSaveCount(), equalTo(1));
+    }
+
+    @Test
+    public void shouldSkipAHalfWrittenLastLine() throws IOException {
+        // Setup
+        File journalFile = new File(temporaryFolder.getRoot(), "journal");
+        TfsCheckinJournal journal = new TfsCheckinJournal(journalFile);
+        journal.append(new TfsPendingOperation(TfsPendingOperation.Type.SAVE, new File("content.txt"), 10));
+        try (FileOutputStream output = new FileOutputStream(journalFile, true)) {
+            output.write("DELETE\t2".getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Execute
+        List<TfsPendingOperation> operations = journal.read();
+
+        // Assert
+        assertThat(operations, hasSize(1));
+    }
+
+    @Test
+    public void shouldOnlyKeepRewrittenOperations() throws IOException {
+        // Setup
+        TfsCheckinJournal journal = new TfsCheckinJournal(new File(temporaryFolder.getRoot(), "journal"));
+        journal.append(new TfsPendingOperation(TfsPendingOperation.Type.SAVE, new File("content.txt"), 10));
+
+        // Execute
+        journal.rewrite(Collections.<TfsPendingOperation>emptyList());
+
+        // Assert
+        assertThat(journal.read(), hasSize(0));
+    }
+}
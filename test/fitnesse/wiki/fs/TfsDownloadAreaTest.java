@@ -0,0 +1,98 @@
+package fitnesse.wiki.fs;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class TfsDownloadAreaTest {
+    public static final String SERVER_FOLDER = "$/FitnesseTfsTest/RooT";
+    public static final String CONTENT = SERVER_FOLDER + "/Page/content.txt";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private InMemoryTfsServer server;
+    private File downloadFolder;
+    private TfsMetrics metrics;
+
+    @Before
+    public void initialise() throws IOException {
+        server = new InMemoryTfsServer(temporaryFolder.newFolder("RooT"), SERVER_FOLDER, 0);
+        downloadFolder = temporaryFolder.newFolder("downloads");
+        metrics = new TfsMetrics();
+    }
+
+    @Test
+    public void shouldDownloadAFileAgainWhenItWasDeleted() throws IOException {
+        // Setup
+        TfsItem item = server.getItem(CONTENT, server.checkinAsSomeoneElse(CONTENT, "Page content"));
+        TfsDownloadArea downloadArea = new TfsDownloadArea(downloadFolder, 1024, metrics);
+        Files.delete(downloadArea.download(item, server).toPath());
+
+        // Execute
+        File file = downloadArea.download(item, server);
+
+        // Assert
+        assertThat(read(file), equalTo("Page content"));
+        assertThat(metrics.getCount(TfsMetrics.Operation.DOWNLOAD), equalTo(2L));
+        assertThat(downloadArea.getBytes(), equalTo(file.length()));
+    }
+
+    @Test
+    public void shouldLeaveTheFilesOfAnotherRunningAreaInTheSameFolder() {
+        // Setup
+        TfsItem item = server.getItem(CONTENT, server.checkinAsSomeoneElse(CONTENT, "Page content"));
+        TfsDownloadArea downloadArea = new TfsDownloadArea(downloadFolder, 1024, metrics);
+        File file = downloadArea.download(item, server);
+
+        // Execute
+        new TfsDownloadArea(downloadFolder, 1024, metrics);
+
+        // Assert
+        assertTrue(file.isFile());
+    }
+
+    @Test
+    public void shouldDeleteTheFolderLeftByAStoppedArea() throws IOException {
+        // Setup
+        File stoppedFolder = new File(downloadFolder, "instance-stopped");
+        assertTrue(stoppedFolder.mkdir());
+        Files.write(new File(stoppedFolder, ".lock").toPath(), new byte[0]);
+        Files.write(new File(stoppedFolder, "download").toPath(), "Old download".getBytes(StandardCharsets.UTF_8));
+
+        // Execute
+        new TfsDownloadArea(downloadFolder, 1024, metrics);
+
+        // Assert
+        assertFalse(stoppedFolder.exists());
+    }
+
+    @Test
+    public void shouldDeleteTheFolderOfAClosedArea() {
+        // Setup
+        TfsItem item = server.getItem(CONTENT, server.checkinAsSomeoneElse(CONTENT, "Page content"));
+        TfsDownloadArea downloadArea = new TfsDownloadArea(downloadFolder, 1024, metrics);
+        downloadArea.download(item, server);
+
+        // Execute
+        downloadArea.close();
+
+        // Assert
+        assertFalse(downloadArea.getFolder().exists());
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
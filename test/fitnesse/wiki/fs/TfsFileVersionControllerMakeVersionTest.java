@@ -1,6 +1,7 @@
 package fitnesse.wiki.fs;
 
 import fitnesse.ConfigurationParameter;
+import fitnesse.wiki.VersionInfo;
 import org.apache.commons.io.IOUtils;
 import org.junit.After;
 import org.junit.Before;
@@ -15,10 +16,10 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
-import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.Matchers.contains;
-import static org.hamcrest.Matchers.hasProperty;
+import static org.hamcrest.Matchers.hasSize;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -31,12 +32,13 @@ public class TfsFileVersionControllerMakeVersionTest {
     private TfsHelper tfsHelper;
 
     @Before
-    public void initialise() throws IOException {
+    public void initialise() throws IOException, InterruptedException {
         final Properties properties = new Properties();
         properties.setProperty(ConfigurationParameter.VERSIONS_CONTROLLER_CLASS.getKey(), TfsFileVersionController.class.getCanonicalName());
         properties.setProperty(TfsPropertiesHelper.NATIVE_FOLDER_PROPERTY_KEY, NATIVE_FOLDER_PROPERTY_VALUE);
         properties.setProperty(TfsPropertiesHelper.TFS_SERVER_PROPERTY_KEY, TFS_SERVER_PROPERTY_VALUE);
         tfsFileVersionController = new TfsFileVersionController(properties);
+        assertTrue("Could not connect to TFS.", tfsFileVersionController.getConnection().awaitConnected(1, TimeUnit.MINUTES));
 
         tfsHelper = new TfsHelper();
         tfsHelper.createAndMapWorkspace(TFS_SERVER_PROPERTY_VALUE,
@@ -121,12 +123,10 @@ public class TfsFileVersionControllerMakeVersionTest {
 
         // Assert
         @SuppressWarnings("unchecked")
-        List<FileVersion> revisionData = new ArrayList(tfsFileVersionController.history(fileVersion1b.getFile(), fileVersion2b.getFile()));
+        List<VersionInfo> revisionData = new ArrayList(tfsFileVersionController.history(fileVersion1b.getFile(), fileVersion2b.getFile()));
 
-        assertThat(revisionData.get(0), hasProperty("name", containsString("filename1")));
-        assertThat(revisionData.get(1), hasProperty("name", containsString("filename1")));
-        assertThat(revisionData.get(2), hasProperty("name", containsString("filename2")));
-        assertThat(revisionData.get(3), hasProperty("name", containsString("filename2")));
+        assertThat(revisionData, hasSize(2));
+        assertTrue(Integer.parseInt(revisionData.get(0).getName()) > Integer.parseInt(revisionData.get(1).getName()));
 
         // Clean up local files
         tfsFileVersionController.delete(fileVersion1, fileVersion2, fileVersion1b, fileVersion2b);
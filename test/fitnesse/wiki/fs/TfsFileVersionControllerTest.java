@@ -0,0 +1,472 @@
+package fitnesse.wiki.fs;
+
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.RecursionType;
+import fitnesse.wiki.VersionInfo;
+import fitnesse.wiki.fs.exceptions.ChangedOnServerSinceLastReadException;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the controller and {@link TfsWrapper} against {@link InMemoryTfsServer}, so it needs no TFS server.
+ */
+public class TfsFileVersionControllerTest {
+    public static final String SERVER_FOLDER = "$/FitnesseTfsTest/RooT";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File wikiRoot;
+    private InMemoryTfsServer server;
+    private Properties properties;
+
+    @Before
+    public void initialise() throws IOException {
+        wikiRoot = temporaryFolder.newFolder("RooT");
+        server = new InMemoryTfsServer(wikiRoot, SERVER_FOLDER, 0);
+        properties = new Properties();
+        properties.setProperty(TfsPropertiesHelper.DOWNLOAD_FOLDER_PROPERTY_KEY, temporaryFolder.newFolder("downloads").getPath());
+        properties.setProperty(TfsPropertiesHelper.WRITE_BEHIND_JOURNAL_PROPERTY_KEY, new File(temporaryFolder.getRoot(), "journal").getPath());
+        properties.setProperty(TfsPropertiesHelper.HISTORY_INDEX_FOLDER_PROPERTY_KEY, new File(temporaryFolder.getRoot(), "history").getPath());
+    }
+
+    @Test
+    public void shouldReadTheServerVersionOfASavedFile() throws IOException {
+        // Setup
+        TfsFileVersionController controller = newController();
+        FileVersion page = makeFileVersion("content.txt", "Page content");
+        controller.makeVersion(page);
+        assertTrue(page.getFile().delete());
+
+        // Execute
+        FileVersion[] revisionData = controller.getRevisionData(null, page.getFile());
+
+        // Assert
+        assertThat(read(revisionData[0]), equalTo("Page content"));
+    }
+
+    @Test
+    public void shouldRefuseToSaveOverAChangeMadeOnTheServerSinceTheLastRead() throws IOException {
+        // Setup
+        TfsFileVersionController controller = newController();
+        controller.makeVersion(makeFileVersion("content.txt", "First version"));
+        server.checkinAsSomeoneElse(SERVER_FOLDER + "/content.txt", "Someone else's version");
+
+        // Execute
+        try {
+            controller.makeVersion(makeFileVersion("content.txt", "My version"));
+            fail("Expected the save to be refused.");
+        } catch (ChangedOnServerSinceLastReadException e) {
+            // Expected
+        }
+
+        // Assert
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/content.txt"), equalTo("Someone else's version"));
+    }
+
+    @Test
+    public void shouldRefuseToSaveOverAPageThatDiffersOnTheServerBeforeItWasRead() throws IOException {
+        // Setup
+        TfsFileVersionController controller = newController();
+        server.checkinAsSomeoneElse(SERVER_FOLDER + "/content.txt", "Someone else's version");
+        Files.write(new File(wikiRoot, "content.txt").toPath(), "Old version".getBytes(StandardCharsets.UTF_8));
+
+        // Execute
+        try {
+            controller.makeVersion(makeFileVersion("content.txt", "My version"));
+            fail("Expected the save to be refused.");
+        } catch (ChangedOnServerSinceLastReadException e) {
+            // Expected
+        }
+
+        // Assert
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/content.txt"), equalTo("Someone else's version"));
+    }
+
+    @Test
+    public void shouldSaveOverAPageMatchingTheServerBeforeItWasRead() throws IOException {
+        // Setup
+        TfsFileVersionController controller = newController();
+        server.checkinAsSomeoneElse(SERVER_FOLDER + "/content.txt", "Server version");
+        Files.write(new File(wikiRoot, "content.txt").toPath(), "Server version".getBytes(StandardCharsets.UTF_8));
+
+        // Execute
+        controller.makeVersion(makeFileVersion("content.txt", "My version"));
+
+        // Assert
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/content.txt"), equalTo("My version"));
+    }
+
+    @Test
+    public void shouldOnlyAskTheServerForAPastRevisionOnce() throws IOException {
+        // Setup
+        TfsFileVersionController controller = newController();
+        FileVersion page = makeFileVersion("content.txt", "First version");
+        controller.makeVersion(page);
+        controller.makeVersion(makeFileVersion("content.txt", "Second version"));
+
+        // Execute
+        FileVersion[] firstRead = controller.getRevisionData("1", page.getFile());
+        int callsAfterFirstRead = server.getCalls();
+        FileVersion[] secondRead = controller.getRevisionData("1", page.getFile());
+
+        // Assert
+        assertThat(read(firstRead[0]), equalTo("First version"));
+        assertThat(read(secondRead[0]), equalTo("First version"));
+        assertThat(server.getCalls(), equalTo(callsAfterFirstRead));
+    }
+
+    @Test
+    public void shouldLeaveOutAFileAddedAfterThePastRevision() throws IOException {
+        // Setup
+        TfsFileVersionController controller = newController();
+        FileVersion page = makeFileVersion("content.txt", "First version");
+        controller.makeVersion(page);
+        FileVersion properties = makeFileVersion("properties.xml", "<properties/>");
+        controller.makeVersion(properties);
+
+        // Execute
+        FileVersion[] revisionData = controller.getRevisionData("1", page.getFile(), properties.getFile());
+
+        // Assert
+        assertThat(read(revisionData[0]), equalTo("First version"));
+        assertThat(revisionData[1], nullValue());
+    }
+
+    @Test
+    public void shouldShowEveryCheckInOfAFileNewestFirst() throws IOException {
+        // Setup
+        TfsFileVersionController controller = newController();
+        FileVersion page = makeFileVersion("content.txt", "First version");
+        controller.makeVersion(page);
+        Collection<? extends VersionInfo> firstHistory = controller.history(page.getFile());
+        controller.makeVersion(makeFileVersion("content.txt", "Second version"));
+
+        // Execute
+        List<VersionInfo> history = new ArrayList<VersionInfo>(controller.history(page.getFile()));
+
+        // Assert
+        assertThat(firstHistory, hasSize(1));
+        assertThat(history, hasSize(2));
+        assertTrue(history.get(0).getCreationTime().compareTo(history.get(1).getCreationTime()) >= 0);
+    }
+
+    @Test
+    public void shouldShowTheHistoryOfThePageChangedInTheLatestChangesetAgain() throws IOException {
+        // Setup
+        TfsFileVersionController controller = newController();
+        FileVersion page = makeFileVersion("content.txt", "First version");
+        controller.makeVersion(page);
+        controller.history(page.getFile());
+
+        // Execute
+        Collection<? extends VersionInfo> history = controller.history(page.getFile());
+
+        // Assert
+        assertThat(history, hasSize(1));
+    }
+
+    @Test
+    public void shouldNameEachVersionByItsChangesetSoItCanBeReadBack() throws IOException {
+        // Setup
+        TfsFileVersionController controller = newController();
+        FileVersion page = makeFileVersion("content.txt", "First version");
+        VersionInfo firstVersion = controller.makeVersion(page);
+        controller.makeVersion(makeFileVersion("content.txt", "Second version"));
+
+        // Execute
+        List<VersionInfo> history = new ArrayList<VersionInfo>(controller.history(page.getFile()));
+        FileVersion[] revisionData = controller.getRevisionData(history.get(1).getName(), page.getFile());
+
+        // Assert
+        assertThat(history.get(0).getName(), equalTo(String.valueOf(server.getLatestChangesetId())));
+        assertThat(history.get(1).getName(), equalTo(firstVersion.getName()));
+        assertThat(read(revisionData[0]), equalTo("First version"));
+    }
+
+    @Test
+    public void shouldShowAChangesetThatTouchedSeveralFilesOfAPageOnce() throws IOException {
+        // Setup
+        TfsFileVersionController controller = newController();
+        FileVersion content = makeFileVersion("content.txt", "Page content");
+        FileVersion pageProperties = makeFileVersion("properties.xml", "<properties/>");
+        controller.makeVersion(content, pageProperties);
+        controller.makeVersion(makeFileVersion("properties.xml", "<properties><Edit/></properties>"));
+
+        // Execute
+        Collection<? extends VersionInfo> history = controller.history(content.getFile(), pageProperties.getFile());
+
+        // Assert
+        assertThat(history, hasSize(2));
+    }
+
+    @Test
+    public void shouldReadAVersionThatOnlyChangedAnotherFileWithoutAskingTheServerAgain() throws IOException {
+        // Setup
+        TfsFileVersionController controller = newController();
+        FileVersion content = makeFileVersion("content.txt", "First version");
+        FileVersion pageProperties = makeFileVersion("properties.xml", "<properties/>");
+        controller.makeVersion(content);
+        VersionInfo propertiesVersion = controller.makeVersion(pageProperties);
+        controller.makeVersion(makeFileVersion("content.txt", "Second version"));
+        controller.history(content.getFile(), pageProperties.getFile());
+        controller.getRevisionData("1", content.getFile());
+        int callsAfterFirstRead = server.getCalls();
+
+        // Execute
+        FileVersion[] revisionData = controller.getRevisionData(propertiesVersion.getName(), content.getFile());
+
+        // Assert
+        assertThat(read(revisionData[0]), equalTo("First version"));
+        assertThat(server.getCalls(), equalTo(callsAfterFirstRead));
+    }
+
+    @Test
+    public void shouldKeepIgnoredFilesOutOfTfs() throws IOException {
+        // Setup
+        TfsFileVersionController controller = newController();
+        FileVersion errorLog = makeFileVersion("ErrorLogs/SuitePage/content.txt", "Error log");
+
+        int callsBeforeSave = server.getCalls();
+
+        // Execute
+        controller.makeVersion(errorLog);
+        String content = read(controller.getRevisionData(null, errorLog.getFile())[0]);
+        controller.delete(errorLog);
+
+        // Assert
+        assertThat(content, equalTo("Error log"));
+        assertThat(server.getCalls(), equalTo(callsBeforeSave));
+        assertFalse(errorLog.getFile().exists());
+    }
+
+    @Test
+    public void shouldCheckInEverySaveMadeInParallel() throws Exception {
+        // Setup
+        final int threads = 8;
+        final int savesPerThread = 20;
+        final TfsFileVersionController controller = newController();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> saves = new ArrayList<Future<Void>>();
+
+        // Execute
+        for (int thread = 0; thread < threads; thread++) {
+            final int threadNumber = thread;
+            saves.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    for (int save = 0; save < savesPerThread; save++) {
+                        controller.makeVersion(makeFileVersion("Page" + threadNumber + "/content.txt", "Save " + save));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> save : saves) {
+            save.get();
+        }
+        executor.shutdown();
+
+        // Assert
+        assertThat(server.getLatestChangesetId(), equalTo(threads * savesPerThread));
+        for (int thread = 0; thread < threads; thread++) {
+            assertThat(server.getLatestContent(SERVER_FOLDER + "/Page" + thread + "/content.txt"), equalTo("Save " + (savesPerThread - 1)));
+        }
+    }
+
+    @Test
+    public void shouldSendSavesInTheBackgroundInWriteBehindMode() throws Exception {
+        // Setup
+        properties.setProperty(TfsPropertiesHelper.WRITE_BEHIND_PROPERTY_KEY, "true");
+        TfsFileVersionController controller = newController();
+
+        // Execute
+        controller.makeVersion(makeFileVersion("content.txt", "Queued version"));
+
+        // Assert
+        long giveUpMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (controller.getWriteBehindQueue().getQueueDepth() > 0 && System.currentTimeMillis() < giveUpMillis) {
+            Thread.sleep(10);
+        }
+        assertThat(controller.getWriteBehindQueue().getQueueDepth(), equalTo(0));
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/content.txt"), equalTo("Queued version"));
+    }
+
+    @Test
+    public void shouldQueueASaveWithoutAskingTheServerAndNotSendItOverAChangeMadeOnTheServer() throws Exception {
+        // Setup
+        properties.setProperty(TfsPropertiesHelper.COALESCE_WINDOW_PROPERTY_KEY, "1");
+        TfsFileVersionController controller = newController();
+        controller.makeVersion(makeFileVersion("content.txt", "First version"));
+        long giveUpMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (controller.getWriteBehindQueue().getQueueDepth() > 0 && System.currentTimeMillis() < giveUpMillis) {
+            Thread.sleep(10);
+        }
+        server.checkinAsSomeoneElse(SERVER_FOLDER + "/content.txt", "Someone else's version");
+        int callsBeforeSave = server.getCalls();
+
+        // Execute
+        controller.makeVersion(makeFileVersion("content.txt", "My version"));
+        int callsDuringSave = server.getCalls() - callsBeforeSave;
+
+        // Assert
+        assertThat(callsDuringSave, equalTo(0));
+        giveUpMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (controller.getWriteBehindQueue().getParkedCount() == 0 && System.currentTimeMillis() < giveUpMillis) {
+            Thread.sleep(10);
+        }
+        assertThat(controller.getWriteBehindQueue().getParkedCount(), equalTo(1));
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/content.txt"), equalTo("Someone else's version"));
+        assertThat(read(controller.getRevisionData(null, new File(wikiRoot, "content.txt"))[0]), equalTo("My version"));
+    }
+
+    @Test
+    public void shouldRenameAPageTreeAsOneChangesetKeepingItsHistory() throws IOException {
+        // Setup
+        TfsFileVersionController controller = newController();
+        controller.makeVersion(makeFileVersion("Parent/content.txt", "Parent page"));
+        controller.makeVersion(makeFileVersion("Parent/Child/content.txt", "First version"));
+        controller.makeVersion(makeFileVersion("Parent/Child/content.txt", "Second version"));
+        int changesetBeforeRename = server.getLatestChangesetId();
+
+        // Execute
+        controller.rename(makeFileVersion("Renamed", ""), new File(wikiRoot, "Parent"));
+
+        // Assert
+        assertThat(server.getLatestChangesetId(), equalTo(changesetBeforeRename + 1));
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/Renamed/Child/content.txt"), equalTo("Second version"));
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/Parent/Child/content.txt"), nullValue());
+        assertTrue(new File(wikiRoot, "Renamed/content.txt").isFile());
+        assertThat(controller.history(new File(wikiRoot, "Renamed/Child/content.txt")), hasSize(3));
+    }
+
+    @Test
+    public void shouldAddAFolderAndEverythingInItAsOneChangeset() throws IOException {
+        // Setup
+        TfsFileVersionController controller = newController();
+        File folder = new File(wikiRoot, "NewPage");
+        assertTrue(new File(folder, "Child").mkdirs());
+        Files.write(new File(folder, "content.txt").toPath(), "New page".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(folder, "Child/content.txt").toPath(), "New child".getBytes(StandardCharsets.UTF_8));
+
+        // Execute
+        controller.addDirectory(makeFileVersion("NewPage", ""));
+
+        // Assert
+        assertThat(server.getLatestChangesetId(), equalTo(1));
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/NewPage/content.txt"), equalTo("New page"));
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/NewPage/Child/content.txt"), equalTo("New child"));
+    }
+
+    @Test
+    public void shouldLeaveIgnoredFilesOutWhenAddingAFolder() throws IOException {
+        // Setup
+        TfsFileVersionController controller = newController();
+        File folder = new File(wikiRoot, "NewPage");
+        assertTrue(new File(folder, "ErrorLogs").mkdirs());
+        Files.write(new File(folder, "content.txt").toPath(), "New page".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(folder, "ErrorLogs/content.txt").toPath(), "Error log".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(folder, "backup.zip").toPath(), "Backup".getBytes(StandardCharsets.UTF_8));
+
+        // Execute
+        controller.addDirectory(makeFileVersion("NewPage", ""));
+
+        // Assert
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/NewPage/content.txt"), equalTo("New page"));
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/NewPage/ErrorLogs/content.txt"), nullValue());
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/NewPage/backup.zip"), nullValue());
+    }
+
+    @Test
+    public void shouldAddANewPagesFolderWithItsFirstFile() throws IOException {
+        // Setup
+        TfsFileVersionController controller = newController();
+        int changesetBeforeAdd = server.getLatestChangesetId();
+
+        // Execute
+        controller.addDirectory(makeFileVersion("NewPage", ""));
+        int changesetAfterAdd = server.getLatestChangesetId();
+        controller.makeVersion(makeFileVersion("NewPage/content.txt", "New page"));
+
+        // Assert
+        assertThat(changesetAfterAdd, equalTo(changesetBeforeAdd));
+        assertThat(server.getChangedPaths(changesetBeforeAdd + 1), contains(SERVER_FOLDER + "/NewPage", SERVER_FOLDER + "/NewPage/content.txt"));
+        assertThat(server.getLatestChangesetId(), equalTo(changesetBeforeAdd + 1));
+    }
+
+    @Test
+    public void shouldLeaveNothingPendingForAnEmptyFolderThatIsAbandoned() throws IOException {
+        // Setup
+        TfsFileVersionController controller = newController();
+
+        // Execute
+        controller.addDirectory(makeFileVersion("AbandonedPage", ""));
+
+        // Assert
+        TfsWorkspace workspace = server.getWorkspaces().get(0);
+        assertThat(workspace.getPendingChanges(new String[]{SERVER_FOLDER}, RecursionType.FULL).length, equalTo(0));
+    }
+
+    @Test
+    public void shouldWorkFromLocalFilesWhileTfsIsDownAndSendTheSavesOnceItIsBack() throws Exception {
+        // Setup
+        TfsFileVersionController controller = newController();
+        controller.makeVersion(makeFileVersion("content.txt", "First version"));
+        server.setUnreachable(true);
+
+        // Execute
+        controller.makeVersion(makeFileVersion("content.txt", "Saved while down"));
+        FileVersion[] readWhileDown = controller.getRevisionData(null, new File(wikiRoot, "content.txt"));
+        boolean connectedWhileDown = controller.getConnection().isConnected();
+        server.setUnreachable(false);
+
+        // Assert
+        assertFalse(connectedWhileDown);
+        assertThat(read(readWhileDown[0]), equalTo("Saved while down"));
+        assertTrue(controller.getConnection().awaitConnected(30, TimeUnit.SECONDS));
+        long giveUpMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (controller.getWriteBehindQueue().getQueueDepth() > 0 && System.currentTimeMillis() < giveUpMillis) {
+            Thread.sleep(10);
+        }
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/content.txt"), equalTo("Saved while down"));
+    }
+
+    private TfsFileVersionController newController() {
+        return new TfsFileVersionController(properties, new TfsWrapper(properties, server, Collections.<TfsVersionControl>singletonList(server)));
+    }
+
+    private FileVersion makeFileVersion(String fileName, String content) {
+        return new TfsFileVersion(new File(wikiRoot, fileName), content.getBytes(StandardCharsets.UTF_8), "", new Date());
+    }
+
+    private static String read(FileVersion fileVersion) throws IOException {
+        return IOUtils.toString(fileVersion.getContent(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,41 @@
+package fitnesse.wiki.fs;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Date;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class TfsFileVersionTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldReadTheContentOfADownloadEvictedBeforeItWasRead() throws IOException {
+        // Setup
+        File download = temporaryFolder.newFile("download");
+        Files.write(download.toPath(), "Downloaded content".getBytes(StandardCharsets.UTF_8));
+        TfsFileVersion version = new TfsFileVersion(new File("content.txt"), download, null, new Date());
+
+        // Execute
+        try {
+            Files.deleteIfExists(download.toPath());
+        } catch (IOException e) {
+            // Windows doesn't delete an open file, which keeps it readable just the same
+        }
+
+        // Assert
+        try (InputStream content = version.getContent()) {
+            assertThat(IOUtils.toString(content, StandardCharsets.UTF_8), equalTo("Downloaded content"));
+        }
+    }
+}
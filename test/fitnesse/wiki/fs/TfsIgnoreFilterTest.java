@@ -0,0 +1,110 @@
+package fitnesse.wiki.fs;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class TfsIgnoreFilterTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File wikiRoot;
+
+    @Before
+    public void initialise() throws IOException {
+        wikiRoot = temporaryFolder.newFolder("FitNesseRoot");
+    }
+
+    @Test
+    public void shouldIgnoreEverythingUnderAFolderMatchingAPattern() {
+        // Setup
+        TfsIgnoreFilter filter = new TfsIgnoreFilter(Arrays.asList("ErrorLogs", "files/testResults", "*.zip"));
+
+        // Assert
+        assertTrue(filter.isIgnored(new File(wikiRoot, "ErrorLogs/SuitePage/content.txt")));
+        assertTrue(filter.isIgnored(new File(wikiRoot, "files/testResults/SuitePage/20150101.xml")));
+        assertTrue(filter.isIgnored(new File(wikiRoot, "SuitePage/backup.zip")));
+        assertFalse(filter.isIgnored(new File(wikiRoot, "SuitePage/content.txt")));
+        assertFalse(filter.isIgnored(new File(wikiRoot, "files/images/logo.png")));
+    }
+
+    @Test
+    public void shouldApplyTfignoreFilesToTheirOwnFolderWithTheNearestHavingTheLastWord() throws IOException {
+        // Setup
+        write(".tfignore", "# Generated by the build\n*.log\n\\output\n");
+        write("SuitePage/.tfignore", "!keep.log\n");
+        TfsIgnoreFilter filter = new TfsIgnoreFilter(Collections.<String>emptyList());
+
+        // Assert
+        assertTrue(filter.isIgnored(new File(wikiRoot, "SuitePage/test.log")));
+        assertTrue(filter.isIgnored(new File(wikiRoot, "output/content.txt")));
+        assertFalse(filter.isIgnored(new File(wikiRoot, "SuitePage/output/content.txt")));
+        assertFalse(filter.isIgnored(new File(wikiRoot, "SuitePage/keep.log")));
+        assertFalse(filter.isIgnored(new File(temporaryFolder.getRoot(), "outside.log")));
+    }
+
+    @Test
+    public void shouldReturnOnlyTheTrackedFilesInOrder() {
+        // Setup
+        TfsIgnoreFilter filter = new TfsIgnoreFilter(Collections.singletonList("ErrorLogs"));
+        File content = new File(wikiRoot, "SuitePage/content.txt");
+        File errorLog = new File(wikiRoot, "ErrorLogs/SuitePage/content.txt");
+        File properties = new File(wikiRoot, "SuitePage/properties.xml");
+
+        // Execute
+        File[] tracked = filter.tracked(content, errorLog, properties);
+
+        // Assert
+        assertThat(tracked, arrayContaining(content, properties));
+    }
+
+    @Test
+    public void shouldNotLookForTfignoreFilesAboveTheMappedFolder() throws IOException {
+        // Setup
+        Files.write(new File(temporaryFolder.getRoot(), ".tfignore").toPath(), "*.txt\n".getBytes(StandardCharsets.UTF_8));
+        TfsIgnoreFilter filter = new TfsIgnoreFilter(Collections.<String>emptyList());
+
+        // Execute
+        filter.setMappedFolders(Collections.singletonList(wikiRoot));
+
+        // Assert
+        assertFalse(filter.isIgnored(new File(wikiRoot, "SuitePage/content.txt")));
+    }
+
+    @Test
+    public void shouldReadATfignoreFileAgainOnceItHasChanged() throws Exception {
+        // Setup
+        write(".tfignore", "*.log\n");
+        TfsIgnoreFilter filter = new TfsIgnoreFilter(Collections.<String>emptyList());
+        boolean ignoredBeforeChange = filter.isIgnored(new File(wikiRoot, "SuitePage/test.log"));
+
+        // Execute
+        write(".tfignore", "*.tmp\n");
+        assertTrue(new File(wikiRoot, ".tfignore").setLastModified(System.currentTimeMillis() + 10000));
+        Thread.sleep(1100);
+
+        // Assert
+        assertTrue(ignoredBeforeChange);
+        assertFalse(filter.isIgnored(new File(wikiRoot, "SuitePage/test.log")));
+        assertTrue(filter.isIgnored(new File(wikiRoot, "SuitePage/test.tmp")));
+    }
+
+    private void write(String fileName, String content) throws IOException {
+        File file = new File(wikiRoot, fileName);
+        if (!file.getParentFile().isDirectory()) assertTrue(file.getParentFile().mkdirs());
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
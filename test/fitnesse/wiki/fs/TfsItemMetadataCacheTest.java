@@ -0,0 +1,109 @@
+package fitnesse.wiki.fs;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class TfsItemMetadataCacheTest {
+    public static final String SERVER_FOLDER = "$/FitnesseTfsTest/RooT";
+    public static final String CONTENT = SERVER_FOLDER + "/Page/content.txt";
+    public static final String PROPERTIES = SERVER_FOLDER + "/Page/properties.xml";
+    public static final String OTHER_CONTENT = SERVER_FOLDER + "/OtherPage/content.txt";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private InMemoryTfsServer server;
+    private TfsMetrics metrics;
+    private TfsItemMetadataCache itemMetadataCache;
+
+    @Before
+    public void initialise() throws IOException {
+        server = new InMemoryTfsServer(temporaryFolder.newFolder("RooT"), SERVER_FOLDER, 0);
+        metrics = new TfsMetrics();
+        itemMetadataCache = new TfsItemMetadataCache(60000, new TfsClientPool(Collections.<TfsVersionControl>singletonList(server)), metrics);
+    }
+
+    @Test
+    public void shouldReadTheMappedFolderOnceWhenThePagesUnderItAreLookedUp() {
+        // Setup
+        int contentChangesetId = server.checkinAsSomeoneElse(CONTENT, "Page content");
+        int otherChangesetId = server.checkinAsSomeoneElse(OTHER_CONTENT, "Other page");
+        TfsWorkspace workspace = server.getWorkspaces().get(0);
+
+        // Execute
+        itemMetadataCache.lookup(workspace, Collections.singletonList(CONTENT));
+        Map<String, TfsItem> knownItems = itemMetadataCache.lookup(workspace, Arrays.asList(CONTENT, PROPERTIES, OTHER_CONTENT));
+
+        // Assert
+        assertThat(metrics.getCount(TfsMetrics.Operation.ITEM_QUERY), equalTo(1L));
+        assertThat(knownItems.get(CONTENT).getChangesetId(), equalTo(contentChangesetId));
+        assertThat(knownItems.get(PROPERTIES), nullValue());
+        assertThat(knownItems.get(OTHER_CONTENT).getChangesetId(), equalTo(otherChangesetId));
+    }
+
+    @Test
+    public void shouldAskForEverythingUnderAnInvalidatedFolderWithoutReadingTheRestAgain() {
+        // Setup
+        server.checkinAsSomeoneElse(CONTENT, "Page content");
+        server.checkinAsSomeoneElse(OTHER_CONTENT, "Other page");
+        TfsWorkspace workspace = server.getWorkspaces().get(0);
+        itemMetadataCache.lookup(workspace, Collections.singletonList(CONTENT));
+
+        // Execute
+        itemMetadataCache.invalidateTree(SERVER_FOLDER + "/Page");
+        Map<String, TfsItem> knownItems = itemMetadataCache.lookup(workspace, Arrays.asList(CONTENT, PROPERTIES, OTHER_CONTENT));
+
+        // Assert
+        assertThat(metrics.getCount(TfsMetrics.Operation.ITEM_QUERY), equalTo(1L));
+        assertFalse(knownItems.containsKey(CONTENT));
+        assertFalse(knownItems.containsKey(PROPERTIES));
+        assertTrue(knownItems.containsKey(OTHER_CONTENT));
+    }
+
+    @Test
+    public void shouldKeepEachWorkspacesFoldersApart() throws IOException {
+        // Setup
+        server.checkinAsSomeoneElse(CONTENT, "Page content");
+        TfsWorkspace workspace = server.getWorkspaces().get(0);
+        TfsWorkspace otherWorkspace = server.addWorkspace("OtherWorkspace", InMemoryTfsServer.OWNER,
+                InMemoryTfsServer.COMPUTER, temporaryFolder.newFolder("Other"), SERVER_FOLDER);
+        itemMetadataCache.lookup(workspace, Collections.singletonList(CONTENT));
+
+        // Execute
+        itemMetadataCache.lookup(otherWorkspace, Collections.singletonList(CONTENT));
+
+        // Assert
+        assertThat(metrics.getCount(TfsMetrics.Operation.ITEM_QUERY), equalTo(2L));
+    }
+
+    @Test
+    public void shouldAskForAnInvalidatedPathUntilItIsPutBack() {
+        // Setup
+        server.checkinAsSomeoneElse(CONTENT, "Page content");
+        TfsWorkspace workspace = server.getWorkspaces().get(0);
+        itemMetadataCache.lookup(workspace, Collections.singletonList(CONTENT));
+        int changesetId = server.checkinAsSomeoneElse(CONTENT, "Changed content");
+
+        // Execute
+        itemMetadataCache.invalidate(CONTENT);
+        boolean knownAfterInvalidate = itemMetadataCache.lookup(workspace, Collections.singletonList(CONTENT)).containsKey(CONTENT);
+        itemMetadataCache.put(CONTENT, server.getItem(CONTENT, changesetId));
+
+        // Assert
+        assertFalse(knownAfterInvalidate);
+        assertThat(itemMetadataCache.lookup(workspace, Collections.singletonList(CONTENT)).get(CONTENT).getChangesetId(), equalTo(changesetId));
+    }
+}
@@ -0,0 +1,83 @@
+package fitnesse.wiki.fs;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class TfsMetricsTest {
+    @Test
+    public void shouldCountCallsAndFailuresOfEachOperation() {
+        // Setup
+        TfsMetrics metrics = new TfsMetrics();
+        long now = System.nanoTime();
+
+        // Execute
+        metrics.record(TfsMetrics.Operation.CHECKIN, now, true);
+        metrics.record(TfsMetrics.Operation.CHECKIN, now, false);
+        metrics.record(TfsMetrics.Operation.DOWNLOAD, now, true);
+
+        // Assert
+        assertThat(metrics.getCount(TfsMetrics.Operation.CHECKIN), equalTo(2L));
+        assertThat(metrics.getFailures(TfsMetrics.Operation.CHECKIN), equalTo(1L));
+        assertThat(metrics.getCount(TfsMetrics.Operation.DOWNLOAD), equalTo(1L));
+        assertThat(metrics.getCount(TfsMetrics.Operation.HISTORY_QUERY), equalTo(0L));
+    }
+
+    @Test
+    public void shouldReadPercentilesToWithinAFactorOfTwo() {
+        // Setup
+        TfsMetrics metrics = new TfsMetrics();
+
+        // Execute
+        for (int i = 0; i < 99; i++) {
+            metrics.recordElapsed(TfsMetrics.Operation.ITEM_QUERY, TimeUnit.MILLISECONDS.toNanos(3), true);
+        }
+        metrics.recordElapsed(TfsMetrics.Operation.ITEM_QUERY, TimeUnit.MILLISECONDS.toNanos(300), true);
+
+        // Assert
+        double median = metrics.getPercentileMillis(TfsMetrics.Operation.ITEM_QUERY, 50);
+        double slowest = metrics.getPercentileMillis(TfsMetrics.Operation.ITEM_QUERY, 100);
+        assertTrue("median was " + median, median >= 3 && median <= 6);
+        assertTrue("slowest was " + slowest, slowest >= 300 && slowest <= 600);
+        assertTrue(metrics.getMaxMillis(TfsMetrics.Operation.ITEM_QUERY) >= 300);
+    }
+
+    @Test
+    public void shouldCountNonFatalErrorsRaisedOutsideAnOperationSeparately() {
+        // Setup
+        TfsMetrics metrics = new TfsMetrics();
+        TfsNonFatalErrorRouter router = new TfsNonFatalErrorRouter(metrics);
+
+        // Execute
+        router.begin();
+        router.onNonFatalError("Raised during an operation");
+        router.end();
+        router.onNonFatalError("Raised on a client thread");
+
+        // Assert
+        assertThat(metrics.getNonFatalErrorCount(), equalTo(2L));
+        assertThat(metrics.getUnattributedNonFatalErrorCount(), equalTo(1L));
+    }
+
+    @Test
+    public void shouldClearEverythingOnReset() {
+        // Setup
+        TfsMetrics metrics = new TfsMetrics();
+        metrics.record(TfsMetrics.Operation.PEND, System.nanoTime(), false);
+        metrics.recordNonFatalError(false);
+
+        // Execute
+        metrics.reset();
+
+        // Assert
+        assertThat(metrics.getCount(TfsMetrics.Operation.PEND), equalTo(0L));
+        assertThat(metrics.getFailures(TfsMetrics.Operation.PEND), equalTo(0L));
+        assertThat(metrics.getOperations()[TfsMetrics.Operation.PEND.ordinal()].getMaxMillis(), equalTo(0.0));
+        assertThat(metrics.getNonFatalErrorCount(), equalTo(0L));
+        assertThat(metrics.getUnattributedNonFatalErrorCount(), equalTo(0L));
+    }
+}
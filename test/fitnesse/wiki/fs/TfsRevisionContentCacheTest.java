@@ -0,0 +1,77 @@
+package fitnesse.wiki.fs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class TfsRevisionContentCacheTest {
+    public static final String SERVER_PATH = "$/FitnesseTfsTest/RooT/content.txt";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldReturnCachedContentForTheSameServerPathAndChangeset() {
+        // Setup
+        TfsRevisionContentCache cache = new TfsRevisionContentCache(1024);
+        cache.put(SERVER_PATH, 12, bytes("version twelve"));
+
+        // Execute
+        byte[] content = cache.get(SERVER_PATH.toUpperCase(), 12);
+        byte[] otherChangeset = cache.get(SERVER_PATH, 13);
+
+        // Assert
+        assertThat(new String(content, StandardCharsets.UTF_8), equalTo("version twelve"));
+        assertThat(otherChangeset, nullValue());
+        assertThat(cache.getHits(), equalTo(1L));
+        assertThat(cache.getMisses(), equalTo(1L));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedContentWhenOverTheSizeLimit() {
+        // Setup
+        TfsRevisionContentCache cache = new TfsRevisionContentCache(20);
+        cache.put(SERVER_PATH, 1, bytes("0123456789"));
+        cache.put(SERVER_PATH, 2, bytes("0123456789"));
+        cache.get(SERVER_PATH, 1);
+
+        // Execute
+        cache.put(SERVER_PATH, 3, bytes("0123456789"));
+
+        // Assert
+        assertThat(cache.get(SERVER_PATH, 2), nullValue());
+        assertThat(new String(cache.get(SERVER_PATH, 1), StandardCharsets.UTF_8), equalTo("0123456789"));
+        assertThat(cache.getEvictions(), equalTo(1L));
+        assertThat(cache.getBytes(), equalTo(20L));
+    }
+
+    @Test
+    public void shouldReadEvictedContentBackFromTheSpillFolderAfterARestart() throws IOException {
+        // Setup
+        File spillFolder = temporaryFolder.newFolder("spill");
+        TfsRevisionContentCache cache = new TfsRevisionContentCache(10, spillFolder, 1024);
+        cache.put(SERVER_PATH, 1, bytes("0123456789"));
+        cache.put(SERVER_PATH, 2, bytes("abcdefghij"));
+
+        // Execute
+        TfsRevisionContentCache restartedCache = new TfsRevisionContentCache(10, spillFolder, 1024);
+        byte[] content = restartedCache.get(SERVER_PATH, 1);
+
+        // Assert
+        assertThat(new String(content, StandardCharsets.UTF_8), equalTo("0123456789"));
+        assertThat(restartedCache.getSpillHits(), equalTo(1L));
+        assertThat(cache.getEvictions(), equalTo(0L));
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+}
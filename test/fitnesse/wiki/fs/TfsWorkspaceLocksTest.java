@@ -0,0 +1,89 @@
+package fitnesse.wiki.fs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class TfsWorkspaceLocksTest {
+    private static final String SERVER_FOLDER = "$/FitnesseTfsTest/RooT";
+    private static final int THREADS = 8;
+    private static final int SAVES_PER_THREAD = 25;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldGiveTheSameLockForTheSameWorkspaceWhateverTheCase() {
+        // Setup
+        TfsWorkspaceLocks locks = new TfsWorkspaceLocks();
+
+        // Execute
+        Lock lock = locks.get("FitnesseWorkspace", "DOMAIN\\user");
+        Lock sameLock = locks.get("fitnesseworkspace", "domain\\USER");
+
+        // Assert
+        assertThat(sameLock, sameInstance(lock));
+    }
+
+    @Test
+    public void shouldCheckInOnlyTheCallersChangesWhenSavingInParallel() throws Exception {
+        // Setup
+        final File wikiRoot = temporaryFolder.newFolder("RooT");
+        final InMemoryTfsServer server = new InMemoryTfsServer(wikiRoot, SERVER_FOLDER, 1);
+        server.setReturningAllPendingChanges(true);
+        Properties properties = new Properties();
+        properties.setProperty(TfsPropertiesHelper.DOWNLOAD_FOLDER_PROPERTY_KEY, temporaryFolder.newFolder("downloads").getPath());
+        final TfsWrapper wrapper = new TfsWrapper(properties, server, Collections.<TfsVersionControl>singletonList(server));
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<List<String>>> saves = new ArrayList<Future<List<String>>>();
+
+        // Execute
+        for (int thread = 0; thread < THREADS; thread++) {
+            final int threadNumber = thread;
+            saves.add(executor.submit(new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws IOException {
+                    List<String> wrongChanges = new ArrayList<String>();
+                    for (int save = 0; save < SAVES_PER_THREAD; save++) {
+                        File file = new File(wikiRoot, "Page" + threadNumber + "-" + (save % 3) + ".txt");
+                        Files.write(file.toPath(), ("Save " + save).getBytes(StandardCharsets.UTF_8));
+                        for (int changesetId : wrapper.checkinFiles("Save " + save, file).getChangesetIds()) {
+                            for (String serverPath : server.getChangedPaths(changesetId)) {
+                                if (!serverPath.equals(SERVER_FOLDER + "/" + file.getName())) wrongChanges.add(serverPath);
+                            }
+                        }
+                    }
+                    return wrongChanges;
+                }
+            }));
+        }
+        List<String> wrongChanges = new ArrayList<String>();
+        for (Future<List<String>> save : saves) {
+            wrongChanges.addAll(save.get());
+        }
+        executor.shutdown();
+
+        // Assert
+        assertThat(wrongChanges, hasSize(0));
+        assertThat(server.getLatestChangesetId(), equalTo(THREADS * SAVES_PER_THREAD));
+    }
+}
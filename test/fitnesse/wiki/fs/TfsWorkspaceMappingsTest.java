@@ -0,0 +1,44 @@
+package fitnesse.wiki.fs;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class TfsWorkspaceMappingsTest {
+    public static final String SERVER_FOLDER = "$/FitnesseTfsTest/RooT";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File wikiRoot;
+    private InMemoryTfsServer server;
+
+    @Before
+    public void initialise() throws IOException {
+        wikiRoot = temporaryFolder.newFolder("RooT");
+        server = new InMemoryTfsServer(wikiRoot, SERVER_FOLDER, 0);
+    }
+
+    @Test
+    public void shouldOnlyFindWorkspacesOfThisComputer() throws IOException {
+        // Setup
+        File page = new File(wikiRoot, "SuitePage/content.txt");
+        server.addWorkspace("OtherComputerWorkspace", InMemoryTfsServer.OWNER, "OTHER-HOST",
+                new File(wikiRoot, "SuitePage"), SERVER_FOLDER + "/SuitePage");
+        TfsWorkspaceMappings mappings = new TfsWorkspaceMappings(server, 0, new TfsMetrics());
+
+        // Execute
+        TfsWorkspace workspace = mappings.getWorkspace(page.getPath());
+
+        // Assert
+        assertThat(workspace.getName(), equalTo("FitnesseWorkspace"));
+        assertThat(mappings.getWorkspaces().size(), equalTo(1));
+    }
+}
@@ -0,0 +1,62 @@
+package fitnesse.wiki.fs;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Properties;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TfsWrapperTest {
+    public static final String SERVER_FOLDER = "$/FitnesseTfsTest/RooT";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private InMemoryTfsServer server;
+    private Properties properties;
+
+    @Before
+    public void initialise() throws IOException {
+        server = new InMemoryTfsServer(temporaryFolder.newFolder("RooT"), SERVER_FOLDER, 0);
+        properties = new Properties();
+        properties.setProperty(TfsPropertiesHelper.DOWNLOAD_FOLDER_PROPERTY_KEY, temporaryFolder.newFolder("downloads").getPath());
+    }
+
+    @Test
+    public void shouldCloseItsConnectionsWhenTheServerCantBeReached() {
+        // Setup
+        server.setUnreachable(true);
+
+        // Execute
+        try {
+            new TfsWrapper(properties, server, Collections.<TfsVersionControl>singletonList(server));
+            fail("Expected the wrapper not to start.");
+        } catch (TfsFileVersionControllerException e) {
+            // Expected
+        }
+
+        // Assert
+        assertTrue(server.isClosed());
+    }
+
+    @Test
+    public void shouldCloseItsConnectionsWhenClosed() {
+        // Setup
+        TfsWrapper wrapper = new TfsWrapper(properties, server, Collections.<TfsVersionControl>singletonList(server));
+        boolean closedBeforeClose = server.isClosed();
+
+        // Execute
+        wrapper.close();
+
+        // Assert
+        assertFalse(closedBeforeClose);
+        assertTrue(server.isClosed());
+    }
+}
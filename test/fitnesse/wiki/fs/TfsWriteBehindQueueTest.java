@@ -0,0 +1,124 @@
+package fitnesse.wiki.fs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class TfsWriteBehindQueueTest {
+    public static final String SERVER_FOLDER = "$/FitnesseTfsTest/RooT";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File wikiRoot;
+    private InMemoryTfsServer server;
+    private TfsWrapper wrapper;
+    private TfsCheckinJournal journal;
+
+    @Before
+    public void initialise() throws IOException {
+        wikiRoot = temporaryFolder.newFolder("RooT");
+        server = new InMemoryTfsServer(wikiRoot, SERVER_FOLDER, 0);
+        Properties properties = new Properties();
+        properties.setProperty(TfsPropertiesHelper.DOWNLOAD_FOLDER_PROPERTY_KEY, temporaryFolder.newFolder("downloads").getPath());
+        wrapper = new TfsWrapper(properties, server, Collections.<TfsVersionControl>singletonList(server));
+        journal = new TfsCheckinJournal(new File(temporaryFolder.getRoot(), "journal"));
+    }
+
+    @After
+    public void close() {
+        wrapper.close();
+    }
+
+    @Test
+    public void shouldCheckInRepeatedSavesOfAPageWithinTheWindowOnce() throws Exception {
+        // Setup
+        TfsWriteBehindQueue queue = new TfsWriteBehindQueue(new TfsConnection(wrapper), journal, 300);
+        File page = new File(wikiRoot, "content.txt");
+
+        // Execute
+        for (int save = 0; save < 5; save++) {
+            write(page, "Save " + save);
+            queue.save(page);
+        }
+        waitForEmpty(queue);
+        queue.close();
+
+        // Assert
+        assertThat(server.getLatestChangesetId(), equalTo(1));
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/content.txt"), equalTo("Save 4"));
+    }
+
+    @Test
+    public void shouldSendOtherPagesAndParkAPageTfsKeepsRefusing() throws Exception {
+        // Setup
+        server.setLocked(SERVER_FOLDER + "/LockedPage/content.txt", true);
+        TfsWriteBehindQueue queue = new TfsWriteBehindQueue(new TfsConnection(wrapper), journal, 0, 1000, 10, 3);
+        File lockedPage = new File(wikiRoot, "LockedPage/content.txt");
+        File otherPage = new File(wikiRoot, "OtherPage/content.txt");
+        write(lockedPage, "Locked page");
+        write(otherPage, "Other page");
+
+        // Execute
+        queue.save(lockedPage, otherPage);
+        long giveUpMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (queue.getParkedCount() == 0 && System.currentTimeMillis() < giveUpMillis) {
+            Thread.sleep(10);
+        }
+        queue.close();
+
+        // Assert
+        assertThat(server.getLatestContent(SERVER_FOLDER + "/OtherPage/content.txt"), equalTo("Other page"));
+        assertThat(queue.getParkedCount(), equalTo(1));
+        assertThat(queue.getQueueDepth(), equalTo(1));
+        assertThat(queue.getLiveQueueDepth(), equalTo(0));
+        assertThat(wrapper.getNonFatalErrorRouter().getErrorCount(), equalTo(1L));
+    }
+
+    @Test
+    public void shouldSendAPageSavedMoreOftenThanTheWindowOnceItHasBeenHeldTheLongest() throws Exception {
+        // Setup
+        TfsWriteBehindQueue queue = new TfsWriteBehindQueue(new TfsConnection(wrapper), journal, 200, 400);
+        File page = new File(wikiRoot, "content.txt");
+
+        // Execute
+        long stopMillis = System.currentTimeMillis() + 1500;
+        for (int save = 0; System.currentTimeMillis() < stopMillis; save++) {
+            write(page, "Save " + save);
+            queue.save(page);
+            Thread.sleep(50);
+        }
+        int changesetsWhileSaving = server.getLatestChangesetId();
+        queue.close();
+
+        // Assert
+        assertTrue(changesetsWhileSaving >= 1);
+    }
+
+    private static void waitForEmpty(TfsWriteBehindQueue queue) throws InterruptedException {
+        long giveUpMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (queue.getQueueDepth() > 0 && System.currentTimeMillis() < giveUpMillis) {
+            Thread.sleep(10);
+        }
+        assertThat(queue.getQueueDepth(), equalTo(0));
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}